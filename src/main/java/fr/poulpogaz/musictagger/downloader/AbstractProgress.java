@@ -1,34 +1,40 @@
 package fr.poulpogaz.musictagger.downloader;
 
 import java.awt.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Progress of a yt-dlp process. Progress lines are parsed in place, without regex
+ * nor substrings, and each parsed line replaces the current {@link Snapshot}.
+ * Readers, like the EDT, get a consistent view of the progress without locking.
+ */
 public abstract class AbstractProgress implements Progress {
 
-    private static final Pattern D_PATTERN =
-            Pattern.compile("^d ([^ ]+) ([^ ]+) ([^ ]+) ([^ ]+) ([^ ]+) ([^ ]+)$");
+    // statuses and postprocessors reported by yt-dlp. Lines referencing one of them reuse the same string
+    private static final String[] KNOWN_NAMES = {
+            "downloading", "finished", "error", "started", "processing",
+            "ExtractAudio", "EmbedThumbnail", "FFmpegMetadata", "MoveFiles", "FFmpegThumbnailsConvertor"
+    };
 
-    private static final Pattern P_PATTERN =
-            Pattern.compile("^p ([^ ]+) ([^ ]+)$");
+    // powers of ten up to 10^22 and integers up to 2^53 are exact doubles
+    private static final double[] POWERS_OF_TEN = new double[19];
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
 
-    private String status;
-    private String postprocessor; // if not null, then all four fiels below are irrelevant
-
-    private long timeElapsed; // millis
-    private double speed; // bytes/second
-    private long eta; // s
-    private long downloadedBytes; // bytes
-    private long totalBytes; // bytes
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+        }
+    }
 
-    private boolean canceled;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
 
     public AbstractProgress() {
         reset();
     }
 
     @Override
-    public synchronized void addOptions(YTDLP ytdlp) {
+    public void addOptions(YTDLP ytdlp) {
         ytdlp.addOption("--progress")
              .addOption("--newline")
              .addOption("--progress-template")
@@ -38,119 +44,251 @@ public abstract class AbstractProgress implements Progress {
     }
 
     @Override
-    public synchronized boolean parse(String line) {
+    public boolean parse(String line) {
+        if (line.length() < 2 || line.charAt(1) != ' ') {
+            return false;
+        }
+
         try {
-            if (line.startsWith("d ")) {
-                Matcher m = D_PATTERN.matcher(line);
-                if (m.matches()) {
-                    parseDownload(m);
-                    return true;
-                }
+            Snapshot old = snapshot.get();
+            Snapshot s = switch (line.charAt(0)) {
+                case 'd' -> parseDownload(line, old);
+                case 'p' -> parsePostprocessing(line, old);
+                default -> null;
+            };
 
-            } else if (line.startsWith("p ")) {
-                Matcher m = P_PATTERN.matcher(line);
-                if (m.matches()) {
-                    parsePostprocessing(m);
-                    return true;
-                }
+            if (s != null) {
+                // keep a concurrent cancellation
+                snapshot.accumulateAndGet(s, (curr, next) -> curr.canceled() ? next.cancel() : next);
+                return true;
             }
         } catch (NumberFormatException _) {}
 
         return false;
     }
 
-    private void parseDownload(Matcher m) {
-        status = m.group(1);
-        postprocessor = null;
-        timeElapsed = ((long) Float.parseFloat(m.group(2))) * 1000;
+    // d status elapsed eta speed downloaded_bytes total_bytes
+    private static Snapshot parseDownload(String line, Snapshot old) {
+        int statusEnd = nextSpace(line, 2);
+        int elapsedEnd = nextSpace(line, statusEnd + 1);
+        int etaEnd = nextSpace(line, elapsedEnd + 1);
+        int speedEnd = nextSpace(line, etaEnd + 1);
+        int downloadedEnd = nextSpace(line, speedEnd + 1);
+        int totalEnd = nextSpace(line, downloadedEnd + 1);
+        if (totalEnd != line.length()) {
+            return null;
+        }
+
+        double elapsed = parseDouble(line, statusEnd + 1, elapsedEnd);
+        long downloaded = parseLong(line, speedEnd + 1, downloadedEnd);
+        if (elapsed < 0 || downloaded < 0) {
+            return null;
+        }
+
+        return new Snapshot(
+                name(line, 2, statusEnd, old.status()),
+                null,
+                (long) elapsed * 1000,
+                parseDouble(line, etaEnd + 1, speedEnd),
+                parseLong(line, elapsedEnd + 1, etaEnd),
+                downloaded,
+                parseLong(line, downloadedEnd + 1, totalEnd),
+                false);
+    }
 
-        if (m.group(3).equals("NA")) {
-            eta = -1;
-        } else {
-            eta = Long.parseLong(m.group(3));
+    // p status postprocessor
+    private static Snapshot parsePostprocessing(String line, Snapshot old) {
+        int statusEnd = nextSpace(line, 2);
+        int postprocessorEnd = nextSpace(line, statusEnd + 1);
+        if (postprocessorEnd != line.length()) {
+            return null;
         }
 
-        if (m.group(4).equals("NA")) {
-            speed = -1;
-        } else {
-            speed = Double.parseDouble(m.group(4));
+        return new Snapshot(
+                name(line, 2, statusEnd, old.status()),
+                name(line, statusEnd + 1, postprocessorEnd, old.postprocessor()),
+                -1, -1, -1, -1, -1,
+                false);
+    }
+
+    /**
+     * @return the index of the next space after from, or the length of the line if there isn't.
+     * Throws NumberFormatException if the field is empty
+     */
+    private static int nextSpace(String line, int from) {
+        if (from >= line.length()) {
+            throw new NumberFormatException("Missing field");
+        }
+
+        int i = line.indexOf(' ', from);
+        if (i == from) {
+            throw new NumberFormatException("Empty field");
+        }
+
+        return i < 0 ? line.length() : i;
+    }
+
+    private static String name(String line, int from, int to, String previous) {
+        int length = to - from;
+        if (previous != null && previous.length() == length && line.startsWith(previous, from)) {
+            return previous;
+        }
+
+        for (String name : KNOWN_NAMES) {
+            if (name.length() == length && line.startsWith(name, from)) {
+                return name;
+            }
         }
 
-        downloadedBytes = Long.parseLong(m.group(5));
+        return line.substring(from, to);
+    }
+
+    private static boolean isNA(String line, int from, int to) {
+        return to - from == 2 && line.charAt(from) == 'N' && line.charAt(from + 1) == 'A';
+    }
 
-        if (m.group(6).equals("NA")) {
-            totalBytes = -1;
-        } else {
-            totalBytes = Long.parseLong(m.group(6));
+    /**
+     * Parses a positive integer.
+     * @return the integer or -1 if the field is NA
+     */
+    static long parseLong(String line, int from, int to) {
+        if (isNA(line, from, to)) {
+            return -1;
+        }
+
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = line.charAt(i) - '0';
+            if (d < 0 || d > 9 || v > (Long.MAX_VALUE - d) / 10) {
+                throw new NumberFormatException("Invalid integer: " + line.substring(from, to));
+            }
+            v = 10 * v + d;
         }
+
+        return v;
     }
 
-    private void parsePostprocessing(Matcher m) {
-        status = m.group(1);
-        postprocessor = m.group(2);
-        timeElapsed = -1;
-        eta = -1;
-        speed = -1;
-        downloadedBytes = -1;
-        totalBytes = -1;
+    /**
+     * Parses a positive decimal number, written as python writes floats. The result
+     * is the same as {@link Double#parseDouble(String)}: when the digits fit in the 53 bits
+     * of a double, the number is the quotient of two exact doubles, which is correctly rounded.
+     * @return the number or -1 if the field is NA
+     */
+    static double parseDouble(String line, int from, int to) {
+        if (isNA(line, from, to)) {
+            return -1;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean dot = false;
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+
+            if (c == '.' && !dot) {
+                dot = true;
+            } else if (c >= '0' && c <= '9' && digits < POWERS_OF_TEN.length - 1) {
+                mantissa = 10 * mantissa + (c - '0');
+                digits++;
+                if (dot) {
+                    fractionDigits++;
+                }
+            } else {
+                // exponent, inf, nan, too many digits: let the JDK handle them
+                return Double.parseDouble(line.substring(from, to));
+            }
+        }
+
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid number: " + line.substring(from, to));
+        } else if (mantissa > MAX_EXACT_MANTISSA) {
+            return Double.parseDouble(line.substring(from, to));
+        }
+
+        return fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
     }
 
     @Override
-    public synchronized void setCanceled() {
-        canceled = true;
+    public void setCanceled() {
+        snapshot.updateAndGet(Snapshot::cancel);
     }
 
     @Override
-    public synchronized void reset() {
-        status = null;
-        postprocessor = null;
-        canceled = false;
-        timeElapsed = -1;
-        eta = -1;
-        speed = -1;
-        downloadedBytes = -1;
-        totalBytes = -1;
+    public void reset() {
+        snapshot.set(Snapshot.EMPTY);
     }
 
     @Override
-    public synchronized Component updateProgressComponent(Component component) {
+    public Component updateProgressComponent(Component component) {
         if (component instanceof AbstractProgressPanel panel) {
-            panel.update(this);
+            panel.update(getSnapshot());
             return panel;
         }
         return null;
     }
 
-    public synchronized boolean isCanceled() {
-        return canceled;
+    /**
+     * @return the progress, as described by the last progress line
+     */
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    public boolean isCanceled() {
+        return snapshot.get().canceled();
     }
 
-    public synchronized String getStatus() {
-        return status;
+    public String getStatus() {
+        return snapshot.get().status();
     }
 
-    public synchronized String getPostprocessor() {
-        return postprocessor;
+    public String getPostprocessor() {
+        return snapshot.get().postprocessor();
     }
 
-    public synchronized long getTimeElapsed() {
-        return timeElapsed;
+    public long getTimeElapsed() {
+        return snapshot.get().timeElapsed();
     }
 
-    public synchronized double getSpeed() {
-        return speed;
+    public double getSpeed() {
+        return snapshot.get().speed();
     }
 
-    public synchronized long getETA() {
-        return eta;
+    public long getETA() {
+        return snapshot.get().eta();
     }
 
-    public synchronized long getDownloadedBytes() {
-        return downloadedBytes;
+    public long getDownloadedBytes() {
+        return snapshot.get().downloadedBytes();
     }
 
-    public synchronized long getTotalBytes() {
-        return totalBytes;
+    public long getTotalBytes() {
+        return snapshot.get().totalBytes();
     }
 
+    /**
+     * An immutable view of the progress.
+     *
+     * @param postprocessor if not null, then the five fields below are irrelevant
+     * @param timeElapsed millis
+     * @param speed bytes/second
+     * @param eta seconds
+     * @param downloadedBytes bytes
+     * @param totalBytes bytes
+     */
+    public record Snapshot(String status, String postprocessor,
+                           long timeElapsed, double speed, long eta,
+                           long downloadedBytes, long totalBytes,
+                           boolean canceled) {
+
+        public static final Snapshot EMPTY = new Snapshot(null, null, -1, -1, -1, -1, -1, false);
+
+        public Snapshot cancel() {
+            if (canceled) {
+                return this;
+            }
+            return new Snapshot(status, postprocessor, timeElapsed, speed, eta, downloadedBytes, totalBytes, true);
+        }
+    }
 }
@@ -6,29 +6,29 @@ import javax.swing.*;
 
 public abstract class AbstractProgressPanel extends JPanel {
 
-    public abstract void update(AbstractProgress progress);
+    public abstract void update(AbstractProgress.Snapshot progress);
 
-    protected void setProgressBarValues(JProgressBar downloadProgressBar, AbstractProgress progress) {
-        if (progress.getPostprocessor() != null) {
+    protected void setProgressBarValues(JProgressBar downloadProgressBar, AbstractProgress.Snapshot progress) {
+        if (progress.postprocessor() != null) {
             downloadProgressBar.setIndeterminate(true);
-            downloadProgressBar.setString("Postprocessing: " + progress.getPostprocessor());
+            downloadProgressBar.setString("Postprocessing: " + progress.postprocessor());
         } else {
-            if (progress.getDownloadedBytes() <= 0) {
+            if (progress.downloadedBytes() <= 0) {
                 downloadProgressBar.setIndeterminate(false);
                 downloadProgressBar.setValue(0);
-                downloadProgressBar.setString(progress.getStatus());
-            } else if (progress.getTotalBytes() <= 0) {
+                downloadProgressBar.setString(progress.status());
+            } else if (progress.totalBytes() <= 0) {
                 downloadProgressBar.setIndeterminate(true);
-                downloadProgressBar.setString(progress.getStatus() + " " +
-                        Units.humanReadableBytes(progress.getDownloadedBytes()) + " of ? B");
+                downloadProgressBar.setString(progress.status() + " " +
+                        Units.humanReadableBytes(progress.downloadedBytes()) + " of ? B");
             } else {
-                int percent = (int) (100 * progress.getDownloadedBytes() / progress.getTotalBytes());
+                int percent = (int) (100 * progress.downloadedBytes() / progress.totalBytes());
 
                 downloadProgressBar.setIndeterminate(false);
                 downloadProgressBar.setValue(percent);
-                downloadProgressBar.setString(progress.getStatus() + " " +
-                        Units.humanReadableBytes(progress.getDownloadedBytes()) + " of " +
-                        Units.humanReadableBytes(progress.getTotalBytes()));
+                downloadProgressBar.setString(progress.status() + " " +
+                        Units.humanReadableBytes(progress.downloadedBytes()) + " of " +
+                        Units.humanReadableBytes(progress.totalBytes()));
             }
         }
     }
@@ -0,0 +1,335 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import fr.poulpogaz.musictagger.model.Music;
+import fr.poulpogaz.musictagger.opus.CoverType;
+import fr.poulpogaz.musictagger.opus.OpusFile;
+import fr.poulpogaz.musictagger.opus.OpusFileIndex;
+import fr.poulpogaz.musictagger.opus.OpusMetadataWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Downloads many musics with a single yt-dlp process. URLs are written to
+ * the standard input of yt-dlp which downloads them one after the other.
+ * <p>
+ * A yt-dlp batch file can't hold options per URL, so musics are downloaded
+ * to a temporary directory, then moved to their output path and tagged
+ * with their metadata and thumbnail once yt-dlp prints where they are.
+ * As for {@link SimpleDownloadTask}, the file isn't parsed after the download.
+ */
+public class BatchDownloadTask extends DownloadTask {
+
+    private static final Logger LOGGER = LogManager.getLogger(BatchDownloadTask.class);
+
+    // prefixes of the lines printed by yt-dlp before and after downloading a music
+    private static final String START = "[batch] start ";
+    private static final String FILE = "[batch] file ";
+
+    /**
+     * @return true if the item can be downloaded by a batch task: its output
+     * must be known before downloading, so it can't use yt-dlp fields
+     */
+    public static boolean canBatch(Item item) {
+        return item.output() != null && !item.output().contains("%(");
+    }
+
+    private static YTDLP ytdlp() {
+        return YTDLP.batch()
+                    .abortOnError(false)
+                    .embedThumbnail(false)
+                    .noOverwrites()
+                    .useWindowsFilenames(true)
+                    .addOption("--continue")
+                    .addOption("--print", "before_dl:" + START + "%(original_url)s")
+                    .addOption("--print", "after_move:" + FILE + "%(original_url)s %(filepath)s")
+                    .addOption("--no-simulate")
+                    .addOption("--extract-audio")
+                    .addOption("--format", "bestaudio");
+    }
+
+
+    private final Map<String, Item> items = new LinkedHashMap<>();
+    private final String host;
+    private final YTDLP ytdlp = ytdlp();
+    private final Progress progress = new SimpleDownloadTask.TaskProgress();
+
+    private final Set<Item> downloaded = new HashSet<>();
+
+    private volatile YTDLPProcess process;
+
+    /**
+     * @param items musics to download. They must have distinct URLs
+     *              and {@link #canBatch(Item)} must be true for each of them
+     */
+    public BatchDownloadTask(List<Item> items) {
+        String host = null;
+        for (Item item : items) {
+            if (!canBatch(item)) {
+                throw new IllegalArgumentException("Can't download " + item.url() + " in a batch");
+            }
+            if (this.items.putIfAbsent(item.url(), item) != null) {
+                throw new IllegalArgumentException("Duplicate URL: " + item.url());
+            }
+
+            String h = hostOf(item.url());
+            if (host == null || host.equals(h)) {
+                host = h;
+            } else {
+                host = "";
+            }
+        }
+
+        // "" if musics are downloaded from different hosts: the task isn't limited
+        this.host = host == null || host.isEmpty() ? null : host;
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void download() throws Exception {
+        downloaded.clear();
+
+        List<Item> toDownload = new ArrayList<>();
+        for (Item item : items.values()) {
+            if (Files.exists(item.target())) {
+                finish(item, loadExisting(item));
+            } else {
+                toDownload.add(item);
+            }
+        }
+
+        if (toDownload.isEmpty()) {
+            return;
+        }
+
+        // the directory is kept between attempts so yt-dlp can resume .part files
+        Path tmp = DownloadManager.getDownloadRoot().resolve(".batch-" + getID());
+        Files.createDirectories(tmp);
+
+        DownloadException exception = null;
+        try {
+            String errors = downloadTo(tmp, toDownload);
+
+            if (downloaded.size() != items.size()) {
+                StringBuilder sb = new StringBuilder("Failed to download:");
+                for (Item item : items.values()) {
+                    if (!downloaded.contains(item)) {
+                        sb.append(System.lineSeparator()).append(item.url());
+                    }
+                }
+                if (errors != null) {
+                    sb.append(System.lineSeparator()).append(errors);
+                }
+
+                exception = DownloadException.fromYTDLPErrors(sb.toString());
+                throw exception;
+            }
+        } finally {
+            if (exception == null || !exception.isRetryable() || !canRetry() || isCanceled()) {
+                deleteDirectory(tmp);
+            }
+        }
+    }
+
+    /**
+     * @return errors printed by yt-dlp or null
+     */
+    private String downloadTo(Path tmp, List<Item> toDownload) throws Exception {
+        LOGGER.info("Downloading {} musics in a batch", toDownload.size());
+        progress.reset();
+        progress.addOptions(ytdlp);
+        ytdlp.setOutput(tmp.resolve("%(id)s.%(ext)s").toString());
+        ytdlp.writeThumbnails(true, tmp.resolve("%(id)s.%(ext)s").toString(), "png");
+
+        StringBuilder urls = new StringBuilder();
+        for (Item item : toDownload) {
+            urls.append(item.url()).append('\n');
+        }
+
+        YTDLPProcess p = new YTDLPProcess(ytdlp, progress, this::onEvent);
+        process = p;
+        if (isCanceled()) {
+            p.destroy(); // canceled before process was set
+        }
+        p.run(urls.toString());
+
+        return p.getErrors();
+    }
+
+    void onEvent(YTDLPProcess.Event event) throws IOException {
+        if (event.type() != YTDLPProcess.Event.Type.OUTPUT) {
+            return;
+        }
+
+        String line = event.line();
+        if (line.startsWith(START)) {
+            progress.reset();
+        } else if (line.startsWith(FILE)) {
+            int sep = line.indexOf(' ', FILE.length());
+            Item item = sep < 0 ? null : items.get(line.substring(FILE.length(), sep));
+
+            if (item == null) {
+                LOGGER.warn("Unknown music downloaded: {}", line);
+            } else {
+                onDownloaded(item, Path.of(line.substring(sep + 1)));
+            }
+        }
+    }
+
+    /**
+     * Called when yt-dlp finished downloading the music of an item to file
+     */
+    void onDownloaded(Item item, Path file) throws IOException {
+        finish(item, moveToTarget(item, file));
+    }
+
+    /**
+     * Moves the downloaded file to the output of the item, replaces its comments
+     * by the metadata of the item and its thumbnail, then adds it to the index.
+     * If the output already exists, for example because two items have the same
+     * output, the downloaded file is deleted and the existing one is kept.
+     */
+    private OpusFile moveToTarget(Item item, Path file) throws IOException {
+        Path target = item.target();
+        Path parent = target.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        // written by yt-dlp next to the music, with the same name
+        String name = file.getFileName().toString();
+        Path thumbnail = file.resolveSibling(name.substring(0, name.lastIndexOf('.') + 1) + "png");
+
+        LOGGER.debug("Moving {} to {}", file, target);
+        try {
+            Files.move(file, target);
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(thumbnail);
+            return loadExisting(item);
+        }
+
+        OpusFile opus = new OpusFile();
+        item.metadata().forEach(opus::put);
+        opus.put("PURL", item.url());
+
+        try {
+            OpusMetadataWriter omw = opus.prepareSave(target);
+            if (Files.exists(thumbnail)) {
+                omw.addCoverArt(thumbnail, null, CoverType.COVER_FRONT);
+            }
+            opus.saveNew(omw);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while tagging " + target);
+        } finally {
+            Files.deleteIfExists(thumbnail);
+        }
+
+        OpusFileIndex.getInstance().put(opus);
+        return opus;
+    }
+
+    /**
+     * @return the existing output of the item, or null if the item has no music
+     */
+    private OpusFile loadExisting(Item item) throws IOException {
+        // same behavior as --no-overwrites
+        LOGGER.info("{} already exists", item.target());
+        return item.music() == null ? null : OpusFileIndex.getInstance().load(item.target());
+    }
+
+    /**
+     * @param opus the downloaded file, may be null if the item has no music
+     */
+    private void finish(Item item, OpusFile opus) {
+        downloaded.add(item);
+
+        if (item.music() != null) {
+            Music music = item.music();
+
+            SwingUtilities.invokeLater(() -> {
+                music.set(opus);
+                music.setDownloading(false);
+                music.notifyChanges();
+            });
+        }
+    }
+
+    private static void deleteDirectory(Path dir) {
+        try {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete {}", dir, e);
+        }
+    }
+
+    @Override
+    protected void cancelImpl() {
+        YTDLPProcess p = process;
+        if (p != null) {
+            p.destroy();
+        }
+        progress.setCanceled();
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Downloading " + items.size() + " musics";
+    }
+
+    @Override
+    public Progress getProgress() {
+        return progress;
+    }
+
+    /**
+     * A music to download.
+     *
+     * @param music the music to update once downloaded, may be null
+     * @param url the URL of the music
+     * @param output where the music is moved once downloaded
+     * @param metadata metadata written to the music once downloaded
+     */
+    public record Item(Music music, String url, String output, Map<String, String> metadata) {
+
+        public Item {
+            Objects.requireNonNull(url);
+            metadata = Map.copyOf(metadata);
+        }
+
+        /**
+         * @return where the music is moved. As yt-dlp, .opus is appended to the output
+         * if it doesn't have this extension
+         */
+        public Path target() {
+            return Path.of(output.endsWith(".opus") ? output : output + ".opus");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link DownloadTask} that failed. If the failure is retryable,
+ * the {@link DownloadManager} runs the task again, according to its {@link RetryPolicy}.
+ */
+public class DownloadException extends IOException {
+
+    // errors printed by yt-dlp that are caused by the network or by an overloaded server
+    private static final String[] RETRYABLE_ERRORS = {
+            "HTTP Error 429",
+            "HTTP Error 500",
+            "HTTP Error 502",
+            "HTTP Error 503",
+            "HTTP Error 504",
+            "timed out",
+            "Connection reset",
+            "Connection refused",
+            "Connection aborted",
+            "Network is unreachable",
+            "Temporary failure in name resolution",
+            "Name or service not known",
+            "Remote end closed connection",
+            "IncompleteRead",
+            "EOF occurred in violation of protocol",
+            "Did not get any data blocks",
+            "giving up after",
+    };
+
+    /**
+     * Creates an exception from the errors printed by yt-dlp. The failure is retryable
+     * if all errors are caused by the network: a video that doesn't exist
+     * doesn't need to be downloaded again.
+     */
+    public static DownloadException fromYTDLPErrors(String errors) {
+        boolean retryable = false;
+        for (String line : errors.split("\\R")) {
+            if (line.contains("ERROR:")) {
+                retryable = isRetryable(line);
+                if (!retryable) {
+                    break;
+                }
+            }
+        }
+
+        return new DownloadException(errors, retryable);
+    }
+
+    private static boolean isRetryable(String line) {
+        for (String error : RETRYABLE_ERRORS) {
+            if (line.contains(error)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private final boolean retryable;
+
+    public DownloadException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
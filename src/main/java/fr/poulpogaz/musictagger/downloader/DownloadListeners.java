@@ -0,0 +1,80 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * Listeners of the {@link DownloadManager} or of a {@link DownloadTask}, partitioned
+ * by the thread on which they are notified. Listeners are stored in copy-on-write
+ * arrays: they are rarely added or removed but read on every event, without locking.
+ */
+final class DownloadListeners {
+
+    static final DownloadListener[] NO_LISTENERS = new DownloadListener[0];
+    private static final ExecutorListener[] NO_EXECUTOR_LISTENERS = new ExecutorListener[0];
+
+    private volatile DownloadListener[] sameThread = NO_LISTENERS;
+    private volatile DownloadListener[] swingThread = NO_LISTENERS;
+    private volatile ExecutorListener[] executor = NO_EXECUTOR_LISTENERS;
+
+    synchronized void add(EventThread thread, DownloadListener listener) {
+        Objects.requireNonNull(listener);
+
+        switch (thread.type()) {
+            case SAME_THREAD -> sameThread = append(sameThread, listener);
+            case SWING_THREAD -> swingThread = append(swingThread, listener);
+            case EXECUTOR -> executor = append(executor, new ExecutorListener(thread.executor(), listener));
+        }
+    }
+
+    synchronized void remove(EventThread thread, DownloadListener listener) {
+        switch (thread.type()) {
+            case SAME_THREAD -> sameThread = remove(sameThread, listener);
+            case SWING_THREAD -> swingThread = remove(swingThread, listener);
+            case EXECUTOR -> executor = remove(executor, new ExecutorListener(thread.executor(), listener));
+        }
+    }
+
+    private static <T> T[] append(T[] array, T element) {
+        T[] copy = Arrays.copyOf(array, array.length + 1);
+        copy[array.length] = element;
+        return copy;
+    }
+
+    private static <T> T[] remove(T[] array, T element) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(element)) {
+                T[] copy = Arrays.copyOf(array, array.length - 1);
+                System.arraycopy(array, i + 1, copy, i, array.length - i - 1);
+                return copy;
+            }
+        }
+
+        return array;
+    }
+
+    /**
+     * Notifies listeners of {@link EventThread.Type#SAME_THREAD} and of {@link EventThread.Type#EXECUTOR}.
+     */
+    void fireDirect(DownloadListener.Event event, DownloadTask task) {
+        for (DownloadListener listener : sameThread) {
+            listener.onEvent(event, task);
+        }
+
+        for (ExecutorListener l : executor) {
+            l.executor().execute(() -> l.listener().onEvent(event, task));
+        }
+    }
+
+    /**
+     * @return listeners of {@link EventThread.Type#SWING_THREAD}. The array must not be modified
+     */
+    DownloadListener[] swingThread() {
+        return swingThread;
+    }
+
+    private record ExecutorListener(Executor executor, DownloadListener listener) {
+
+    }
+}
@@ -1,29 +1,43 @@
 package fr.poulpogaz.musictagger.downloader;
 
-import org.apache.commons.collections4.MapIterator;
-import org.apache.commons.collections4.MultiValuedMap;
-import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+import fr.poulpogaz.musictagger.opus.OpusFileIndex;
+import fr.poulpogaz.musictagger.utils.EDTExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import javax.swing.*;
+import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Queue;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class DownloadManager {
 
+    private static final Logger LOGGER = LogManager.getLogger(DownloadManager.class);
 
-    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(Thread.ofPlatform().name("download-", 0).factory());
+    // wakes up the scheduler when a task can be retried
+    private static final ScheduledExecutorService RETRY_TIMER =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("download-retry").daemon().factory());
     private static final Object LOCK = new Object();
-    private static final Worker WORKER = new Worker();
-    private static final Queue<DownloadTask> TASKS = new ArrayDeque<>();
 
-    private static final MultiValuedMap<EventThread, DownloadListener> LISTENERS = new ArrayListValuedHashMap<>();
+    // all fields below are guarded by LOCK
+    private static final DownloadQueue TASKS = new DownloadQueue();
+    private static final List<DownloadTask> RUNNING = new ArrayList<>();
+    private static final Map<String, Integer> RUNNING_PER_HOST = new HashMap<>();
+    private static int downloading; // number of running tasks that aren't post-processing
+    private static int postProcessing;
+
+    private static int maxConcurrentDownloads = 4;
+    private static int maxDownloadsPerHost = 2;
+    private static int maxPostProcessing = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    private static final DownloadListeners LISTENERS = new DownloadListeners();
 
     private static Path downloadRoot = Path.of(System.getProperty("user.dir"));
 
@@ -34,148 +48,380 @@ public class DownloadManager {
             fireEvent(DownloadListener.Event.QUEUED, task);
 
             synchronized (LOCK) {
-                TASKS.offer(task);
+                TASKS.add(task);
+                schedule();
+            }
+        }
+    }
 
-                if (!WORKER.running) {
-                    WORKER.running = true;
-                    EXECUTOR.submit(WORKER);
+    /**
+     * Changes the priority of a task. If the task is queued, it goes
+     * after the queued tasks of its group with the same priority.
+     */
+    static void setPriority(DownloadTask task, Priority priority) {
+        Objects.requireNonNull(priority);
+
+        synchronized (LOCK) {
+            if (task.priority != priority) {
+                boolean queued = TASKS.remove(task);
+                task.priority = priority;
+
+                if (queued) {
+                    TASKS.add(task);
+                    schedule();
                 }
             }
         }
     }
 
+    /**
+     * Moves a queued task to the head of the queue: its priority becomes
+     * {@link Priority#HIGH} and it is the next task of its group.
+     */
+    public static void moveToFront(DownloadTask task) {
+        synchronized (LOCK) {
+            if (TASKS.remove(task)) {
+                task.priority = Priority.HIGH;
+                TASKS.addFirst(task);
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Moves a queued task to the end of the queue: its priority becomes
+     * {@link Priority#LOW} and it is the last task of its group.
+     */
+    public static void moveToBack(DownloadTask task) {
+        synchronized (LOCK) {
+            if (TASKS.remove(task)) {
+                task.priority = Priority.LOW;
+                TASKS.add(task);
+            }
+        }
+    }
+
 
 
     public static void cancelAll() {
-        for (DownloadTask task : TASKS) {
+        List<DownloadTask> tasks;
+        synchronized (LOCK) {
+            tasks = new ArrayList<>(RUNNING);
+            tasks.addAll(TASKS.toList());
+        }
+
+        for (DownloadTask task : tasks) {
             task.cancel();
         }
     }
 
     public static void shutdown() {
         EXECUTOR.shutdown();
+        RETRY_TIMER.shutdown();
     }
 
 
 
-    public static boolean isDownloading() {
-        return WORKER.task != null;
+    /**
+     * Starts queued tasks while there are free download slots. A task is skipped
+     * if too many tasks of the same host are running: the next one is tried.
+     */
+    private static void schedule() {
+        if (downloading >= maxConcurrentDownloads || TASKS.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<DownloadTask> it = TASKS.toList().iterator();
+        while (downloading < maxConcurrentDownloads && it.hasNext()) {
+            DownloadTask task = it.next();
+
+            if (task.getState() != State.QUEUED) {
+                TASKS.remove(task); // canceled
+                continue;
+            }
+
+            if (task.retryAt > now || RUNNING.contains(task)) {
+                continue; // waiting before retrying or not released yet
+            }
+
+            String host = task.getHost();
+            if (host != null && RUNNING_PER_HOST.getOrDefault(host, 0) >= maxDownloadsPerHost) {
+                continue;
+            }
+
+            TASKS.poll(task);
+            RUNNING.add(task);
+            downloading++;
+            if (host != null) {
+                RUNNING_PER_HOST.merge(host, 1, Integer::sum);
+            }
+
+            try {
+                EXECUTOR.execute(() -> run(task));
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Download manager is shutdown, cannot start {}", task.id, e);
+                release(task);
+                break;
+            }
+        }
     }
 
-    public static boolean isQueueEmpty() {
-        return TASKS.isEmpty();
+    private static void run(DownloadTask task) {
+        LOGGER.debug("starting {}", task.id);
+
+        try {
+            if (task.state.compareAndSet(State.QUEUED, State.RUNNING)) {
+                fireEvent(DownloadListener.Event.STARTED, task);
+
+                try {
+                    task.attempts++;
+                    task.download();
+                } catch (Exception e) {
+                    if (e instanceof DownloadException de && de.isRetryable() && retry(task)) {
+                        LOGGER.info("Task {} failed, retrying in {} ms", task.id,
+                                    task.retryAt - System.currentTimeMillis(), e);
+                    } else if (task.isCanceled()) {
+                        LOGGER.debug("Task {} stopped after being canceled", task.id, e);
+                    } else {
+                        LOGGER.warn("Task {} throws an exception", task.id, e);
+                        if (task.state.compareAndSet(State.RUNNING, State.FAILED)) {
+                            fireEvent(DownloadListener.Event.FAILED, task);
+                            LOGGER.debug("failed {}", task.id);
+                        }
+                    }
+                }
+
+                if (task.state.compareAndSet(State.RUNNING, State.FINISHED)) {
+                    fireEvent(DownloadListener.Event.FINISHED, task);
+                    LOGGER.debug("finished {}", task.id);
+                }
+            }
+        } finally {
+            boolean idle;
+            synchronized (LOCK) {
+                release(task);
+                schedule();
+                idle = RUNNING.isEmpty();
+            }
+
+            // downloaded files are added to the index: save it once all downloads are done
+            if (idle) {
+                try {
+                    OpusFileIndex.getInstance().write();
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to write opus file index", e);
+                }
+            }
+        }
     }
 
-    public static DownloadTask getRunningTask() {
-        return WORKER.task;
+    /**
+     * Puts back the task in the queue if the retry policy allows it.
+     * The task is started again after a delay.
+     */
+    private static boolean retry(DownloadTask task) {
+        RetryPolicy policy = retryPolicy;
+        if (!policy.canRetry(task.attempts)) {
+            return false;
+        }
+
+        long delay = policy.getDelay(task.attempts);
+        synchronized (LOCK) {
+            if (!task.state.compareAndSet(State.RUNNING, State.QUEUED)) {
+                return false; // canceled
+            }
+
+            task.retryAt = System.currentTimeMillis() + delay;
+            TASKS.addFirst(task);
+        }
+
+        try {
+            RETRY_TIMER.schedule(() -> {
+                synchronized (LOCK) {
+                    schedule();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Download manager is shutdown, cannot retry {}", task.id, e);
+        }
+
+        fireEvent(DownloadListener.Event.QUEUED, task);
+        return true;
     }
 
-    public static Collection<DownloadTask> getQueue() {
-        return Collections.unmodifiableCollection(TASKS);
+    /**
+     * Called by a task when it starts post-processing. yt-dlp can't be paused, so the
+     * task can't wait for a post-processing slot: if one is free, the task moves to
+     * it and frees its download slot for the next task. Otherwise, it keeps its
+     * download slot.
+     */
+    static void startPostProcessing(DownloadTask task) {
+        synchronized (LOCK) {
+            if (!task.postProcessing && postProcessing < maxPostProcessing && RUNNING.contains(task)) {
+                LOGGER.debug("task {} is post-processing", task.id);
+                task.postProcessing = true;
+                postProcessing++;
+                downloading--;
+                schedule();
+            }
+        }
     }
 
-    public static int getTaskCount() {
-        return TASKS.size() + (isDownloading() ? 1 : 0);
+    private static void release(DownloadTask task) {
+        RUNNING.remove(task);
+
+        if (task.postProcessing) {
+            postProcessing--;
+            task.postProcessing = false; // the task may be retried
+        } else {
+            downloading--;
+        }
+
+        String host = task.getHost();
+        if (host != null) {
+            RUNNING_PER_HOST.computeIfPresent(host, (_, count) -> count > 1 ? count - 1 : null);
+        }
     }
 
 
-    public static void addListener(DownloadListener listener) {
-        addListener(EventThread.SAME_THREAD, listener);
+
+    public static void setMaxConcurrentDownloads(int max) {
+        checkPositive(max);
+        synchronized (LOCK) {
+            maxConcurrentDownloads = max;
+            schedule();
+        }
     }
 
-    public static void addListener(EventThread thread, DownloadListener listener) {
-        LISTENERS.put(thread, listener);
+    public static int getMaxConcurrentDownloads() {
+        synchronized (LOCK) {
+            return maxConcurrentDownloads;
+        }
     }
 
-    public static void removeListener(EventThread thread, DownloadListener listener) {
-        LISTENERS.removeMapping(thread, listener);
+    public static void setMaxDownloadsPerHost(int max) {
+        checkPositive(max);
+        synchronized (LOCK) {
+            maxDownloadsPerHost = max;
+            schedule();
+        }
     }
 
+    public static int getMaxDownloadsPerHost() {
+        synchronized (LOCK) {
+            return maxDownloadsPerHost;
+        }
+    }
 
-    static void fireEvent(DownloadListener.Event event, DownloadTask task) {
-        Collection<DownloadListener> same1 = LISTENERS.get(EventThread.SAME_THREAD);
-        Collection<DownloadListener> same2 = task.listeners.get(EventThread.SAME_THREAD);
-        fireEvent(same1, same2, event, task);
+    /**
+     * Sets the maximal number of tasks that can be post-processing without
+     * using a download slot.
+     */
+    public static void setMaxPostProcessing(int max) {
+        checkPositive(max);
+        synchronized (LOCK) {
+            maxPostProcessing = max;
+        }
+    }
 
-        Collection<DownloadListener> swing1 = LISTENERS.get(EventThread.SWING_THREAD);
-        Collection<DownloadListener> swing2 = task.listeners.get(EventThread.SWING_THREAD);
-        SwingUtilities.invokeLater(() -> fireEvent(swing1, swing2, event, task));
+    public static int getMaxPostProcessing() {
+        synchronized (LOCK) {
+            return maxPostProcessing;
+        }
+    }
 
-        fireEvent(LISTENERS.mapIterator(), event, task);
-        fireEvent(task.listeners.mapIterator(), event, task);
+    /**
+     * Sets how tasks that failed with a retryable {@link DownloadException} are retried.
+     */
+    public static void setRetryPolicy(RetryPolicy retryPolicy) {
+        DownloadManager.retryPolicy = Objects.requireNonNull(retryPolicy);
     }
 
-    private static void fireEvent(MapIterator<EventThread, DownloadListener> it,
-                                  DownloadListener.Event event,
-                                  DownloadTask task) {
-        while (it.hasNext()) {
-            EventThread t = it.next();
+    public static RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
 
-            if (t.type() == EventThread.Type.EXECUTOR) {
-                t.executor().execute(() -> it.getValue().onEvent(event, task));
-            }
+    private static void checkPositive(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be positive");
         }
     }
 
-    private static void fireEvent(Collection<DownloadListener> c1,
-                                  Collection<DownloadListener> c2,
-                                  DownloadListener.Event event,
-                                  DownloadTask task) {
-        c1.forEach(l -> l.onEvent(event, task));
-        c2.forEach(l -> l.onEvent(event, task));
+
+
+    public static boolean isDownloading() {
+        synchronized (LOCK) {
+            return !RUNNING.isEmpty();
+        }
     }
 
+    public static boolean isQueueEmpty() {
+        synchronized (LOCK) {
+            return TASKS.isEmpty();
+        }
+    }
 
-    public static Path getDownloadRoot() {
-        return downloadRoot;
+    public static List<DownloadTask> getRunningTasks() {
+        synchronized (LOCK) {
+            return List.copyOf(RUNNING);
+        }
     }
 
-    public static void setDownloadRoot(Path downloadRoot) {
-        DownloadManager.downloadRoot = downloadRoot;
+    /**
+     * @return queued tasks, in the order they will probably be started
+     */
+    public static List<DownloadTask> getQueue() {
+        synchronized (LOCK) {
+            return TASKS.toList();
+        }
     }
 
+    public static int getTaskCount() {
+        synchronized (LOCK) {
+            return TASKS.size() + RUNNING.size();
+        }
+    }
 
 
-    private static class Worker implements Runnable {
+    public static void addListener(DownloadListener listener) {
+        addListener(EventThread.SAME_THREAD, listener);
+    }
 
-        private static final Logger LOGGER = LogManager.getLogger(Worker.class);
+    public static void addListener(EventThread thread, DownloadListener listener) {
+        LISTENERS.add(thread, listener);
+    }
 
-        private boolean running = false;
-        private DownloadTask task;
+    public static void removeListener(EventThread thread, DownloadListener listener) {
+        LISTENERS.remove(thread, listener);
+    }
 
-        @Override
-        public void run() {
-            while (true) {
-                synchronized (LOCK) {
-                    task = TASKS.poll();
 
-                    if (task == null) {
-                        running = false;
-                        break;
-                    }
+    static void fireEvent(DownloadListener.Event event, DownloadTask task) {
+        LISTENERS.fireDirect(event, task);
+        task.listeners.fireDirect(event, task);
+
+        DownloadListener[] swing1 = LISTENERS.swingThread();
+        DownloadListener[] swing2 = task.listeners.swingThread();
+        if (swing1.length > 0 || swing2.length > 0) {
+            // events fired at the same time are dispatched together, so tasks queued at once don't flood the EDT
+            EDTExecutor.getInstance().execute(() -> {
+                for (DownloadListener l : swing1) {
+                    l.onEvent(event, task);
                 }
+                for (DownloadListener l : swing2) {
+                    l.onEvent(event, task);
+                }
+            });
+        }
+    }
 
-                LOGGER.debug("starting {}", task.id);
-
-                if (task.state.compareAndSet(State.QUEUED, State.RUNNING)) {
-                    DownloadManager.fireEvent(DownloadListener.Event.STARTED, task);
 
-                    try {
-                        task.download();
-                    } catch (Exception e) {
-                        LOGGER.warn("Task {} throws an exception", this, e);
-                        if (task.state.compareAndSet(State.RUNNING, State.FAILED)) {
-                            DownloadManager.fireEvent(DownloadListener.Event.FAILED, task);
-                            LOGGER.debug("failed {}", task.id);
-                        }
-                    }
+    public static Path getDownloadRoot() {
+        return downloadRoot;
+    }
 
-                    if (task.state.compareAndSet(State.RUNNING, State.FINISHED)) {
-                        DownloadManager.fireEvent(DownloadListener.Event.FINISHED, task);
-                        LOGGER.debug("finished {}", task.id);
-                    }
-                }
-            }
-        }
+    public static void setDownloadRoot(Path downloadRoot) {
+        DownloadManager.downloadRoot = downloadRoot;
     }
 }
@@ -0,0 +1,108 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import java.util.*;
+
+/**
+ * Queued tasks of the {@link DownloadManager}. Tasks are ordered by priority.
+ * Tasks of the same priority are grouped (by template) and groups take turns:
+ * after a task of a group is started, the group goes at the end of the round.
+ * Inside a group, tasks are in FIFO order.
+ * This class isn't thread safe: it is guarded by the lock of the manager.
+ */
+class DownloadQueue {
+
+    private final EnumMap<Priority, Map<String, Deque<DownloadTask>>> levels = new EnumMap<>(Priority.class);
+    private int size;
+
+    DownloadQueue() {
+        for (Priority p : Priority.values()) {
+            // iteration order is the order of the round
+            levels.put(p, new LinkedHashMap<>());
+        }
+    }
+
+    void add(DownloadTask task) {
+        group(task).addLast(task);
+        size++;
+    }
+
+    void addFirst(DownloadTask task) {
+        group(task).addFirst(task);
+        size++;
+    }
+
+    private Deque<DownloadTask> group(DownloadTask task) {
+        return levels.get(task.priority).computeIfAbsent(groupKey(task), _ -> new ArrayDeque<>());
+    }
+
+    boolean remove(DownloadTask task) {
+        Map<String, Deque<DownloadTask>> level = levels.get(task.priority);
+        String key = groupKey(task);
+
+        Deque<DownloadTask> group = level.get(key);
+        if (group == null || !group.remove(task)) {
+            return false;
+        }
+
+        if (group.isEmpty()) {
+            level.remove(key);
+        }
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes a task that is being started and moves its group at the end of the round.
+     */
+    void poll(DownloadTask task) {
+        Map<String, Deque<DownloadTask>> level = levels.get(task.priority);
+        String key = groupKey(task);
+
+        Deque<DownloadTask> group = level.remove(key);
+        if (group != null && group.remove(task)) {
+            size--;
+        }
+        if (group != null && !group.isEmpty()) {
+            level.put(key, group);
+        }
+    }
+
+    /**
+     * @return all tasks, in the order they would be started if no host limit is reached
+     */
+    List<DownloadTask> toList() {
+        List<DownloadTask> list = new ArrayList<>(size);
+
+        for (Map<String, Deque<DownloadTask>> level : levels.values()) {
+            List<Iterator<DownloadTask>> its = new ArrayList<>(level.size());
+            for (Deque<DownloadTask> group : level.values()) {
+                its.add(group.iterator());
+            }
+
+            while (!its.isEmpty()) {
+                for (Iterator<Iterator<DownloadTask>> it = its.iterator(); it.hasNext(); ) {
+                    Iterator<DownloadTask> group = it.next();
+                    list.add(group.next());
+
+                    if (!group.hasNext()) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        return list;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    private static String groupKey(DownloadTask task) {
+        return task.group == null ? "" : task.group;
+    }
+}
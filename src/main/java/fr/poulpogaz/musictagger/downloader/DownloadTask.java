@@ -1,7 +1,5 @@
 package fr.poulpogaz.musictagger.downloader;
 
-import org.apache.commons.collections4.MultiValuedMap;
-import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -17,7 +15,20 @@ public abstract class DownloadTask {
     final int id = ID_GENERATOR.getAndIncrement();
     final AtomicReference<State> state = new AtomicReference<>(State.CREATED);
 
-    final MultiValuedMap<EventThread, DownloadListener> listeners = new ArrayListValuedHashMap<>();
+    final DownloadListeners listeners = new DownloadListeners();
+
+    // guarded by DownloadManager.LOCK
+    boolean postProcessing;
+    // modified with DownloadManager.LOCK held
+    volatile Priority priority = Priority.NORMAL;
+
+    // tasks of the same group take turns in the queue
+    volatile String group;
+
+    // modified by the thread running the task
+    volatile int attempts;
+    // the task isn't started before this time, in millis. Guarded by DownloadManager.LOCK
+    long retryAt;
 
     public abstract void download() throws Exception;
 
@@ -27,6 +38,62 @@ public abstract class DownloadTask {
 
     public abstract Progress getProgress();
 
+    /**
+     * @return the host this task downloads from, used to limit the number of
+     * concurrent downloads per host. Null if there is no limit.
+     */
+    public String getHost() {
+        return null;
+    }
+
+    /**
+     * @return the number of times this task was started. It is greater than one
+     * if the task failed and was retried.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return true if the {@link DownloadManager} will run this task again, after
+     * it fails with a retryable {@link DownloadException}
+     */
+    protected final boolean canRetry() {
+        return DownloadManager.getRetryPolicy().canRetry(attempts);
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        DownloadManager.setPriority(this, priority);
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Sets the group of this task. The queue alternates between groups, so tasks
+     * of a group don't wait behind all tasks of another group with the same priority.
+     * Must be called before the task is queued.
+     */
+    public void setGroup(String group) {
+        if (state.get() != State.CREATED) {
+            throw new IllegalStateException("Task already queued");
+        }
+        this.group = group;
+    }
+
+    /**
+     * Tells the {@link DownloadManager} that this task finished downloading
+     * and started post-processing.
+     */
+    protected final void startPostProcessing() {
+        DownloadManager.startPostProcessing(this);
+    }
+
 
 
     public void addListener(DownloadListener listener) {
@@ -34,11 +101,11 @@ public abstract class DownloadTask {
     }
 
     public void addListener(EventThread executor, DownloadListener listener) {
-        listeners.put(Objects.requireNonNull(executor), listener);
+        listeners.add(Objects.requireNonNull(executor), listener);
     }
 
     public void removeListener(EventThread thread, DownloadListener listener) {
-        listeners.removeMapping(thread, listener);
+        listeners.remove(thread, listener);
     }
 
     public final void cancel() {
@@ -0,0 +1,12 @@
+package fr.poulpogaz.musictagger.downloader;
+
+/**
+ * Tasks with a higher priority are started first. Ordered from the highest
+ * to the lowest priority.
+ */
+public enum Priority {
+
+    HIGH,
+    NORMAL,
+    LOW
+}
@@ -0,0 +1,55 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How the {@link DownloadManager} retries tasks that failed with a retryable
+ * {@link DownloadException}. The n-th retry waits initialDelay * multiplier^(n - 1)
+ * milliseconds, at most maxDelay, and the delay is randomly changed by up to jitter percent
+ * so tasks that failed together don't retry together.
+ *
+ * @param maxAttempts maximal number of times a task is run, including the first one
+ * @param initialDelay delay before the first retry, in milliseconds
+ * @param multiplier how much the delay grows after each retry
+ * @param maxDelay maximal delay, in milliseconds
+ * @param jitter between 0 and 1
+ */
+public record RetryPolicy(int maxAttempts, long initialDelay, double multiplier, long maxDelay, double jitter) {
+
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 1, 0, 0);
+    public static final RetryPolicy DEFAULT = new RetryPolicy(4, 2_000, 2, 60_000, 0.25);
+
+    public RetryPolicy {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        if (initialDelay < 0 || maxDelay < 0) {
+            throw new IllegalArgumentException("Negative delay");
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be greater or equal to 1");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+    }
+
+    /**
+     * @param retry number of the retry, starting from 1
+     * @return the delay before the retry, in milliseconds
+     */
+    public long getDelay(int retry) {
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, retry - 1));
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+
+        return (long) (delay * factor);
+    }
+
+    /**
+     * @param attempts number of times the task was run
+     * @return true if the task can be run again
+     */
+    public boolean canRetry(int attempts) {
+        return attempts < maxAttempts;
+    }
+}
@@ -1,7 +1,10 @@
 package fr.poulpogaz.musictagger.downloader;
 
 import fr.poulpogaz.musictagger.model.Music;
+import fr.poulpogaz.musictagger.opus.CoverType;
 import fr.poulpogaz.musictagger.opus.OpusFile;
+import fr.poulpogaz.musictagger.opus.OpusFileIndex;
+import fr.poulpogaz.musictagger.opus.OpusMetadataWriter;
 import fr.poulpogaz.musictagger.ui.layout.VerticalConstraint;
 import fr.poulpogaz.musictagger.ui.layout.VerticalLayout;
 import fr.poulpogaz.musictagger.utils.Units;
@@ -10,14 +13,12 @@ import org.apache.logging.log4j.Logger;
 
 import javax.swing.*;
 import java.awt.*;
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
 
 public class SimpleDownloadTask extends DownloadTask {
 
@@ -43,16 +44,9 @@ public class SimpleDownloadTask extends DownloadTask {
 
 
     public static YTDLP ytdlp(String url) {
-        YTDLP ytdlp = new YTDLP(url);
-
-        ytdlp.abortOnError(true)
-             .embedThumbnail(true)
-             .noOverwrites()
-             .useWindowsFilenames(true)
-             .addOption("--print", "after_move:filepath")
-             .addOption("--no-simulate")
-             .addOption("--extract-audio")
-             .addOption("--format", "bestaudio")
+        YTDLP ytdlp = audioOnly(url);
+
+        ytdlp.embedThumbnail(true)
              .addOption("--embed-metadata");
 
         // remove all default metadata fields, except purl
@@ -63,6 +57,22 @@ public class SimpleDownloadTask extends DownloadTask {
         return ytdlp;
     }
 
+    /**
+     * @return a yt-dlp command which only extracts the audio: it neither
+     * embeds the thumbnail nor writes metadata
+     */
+    private static YTDLP audioOnly(String url) {
+        return new YTDLP(url)
+                .abortOnError(true)
+                .embedThumbnail(false)
+                .noOverwrites()
+                .useWindowsFilenames(true)
+                .addOption("--continue") // resume the .part file when the task is retried
+                .addOption("--print", "after_move:filepath")
+                .addOption("--no-simulate")
+                .addOption("--extract-audio")
+                .addOption("--format", "bestaudio");
+    }
 
 
 
@@ -70,96 +80,150 @@ public class SimpleDownloadTask extends DownloadTask {
 
 
 
-    private static final Logger LOGGER = LogManager.getLogger(SimpleDownloadTask.class);
-    private static final ExecutorService READ_ERR_EXECUTOR;
 
-    static {
-        ThreadFactory factory = Thread.ofVirtual().name("yt-dlp err read-", 1).factory();
-        READ_ERR_EXECUTOR = Executors.newThreadPerTaskExecutor(factory);
-    }
+    private static final Logger LOGGER = LogManager.getLogger(SimpleDownloadTask.class);
 
 
     private final Music music;
     private final YTDLP ytdlp;
+    private final Map<String, String> tags; // null if yt-dlp writes the metadata
+    private final String host;
     private final Progress progress = new TaskProgress();
-    private StringBuilder errors;
 
-    private Process process;
+    private volatile YTDLPProcess process;
 
     private Path downloadPath;
 
     public SimpleDownloadTask(Music music, YTDLP ytdlp) {
         this.music = music;
         this.ytdlp = Objects.requireNonNull(ytdlp).copy();
+        this.tags = null;
+        this.host = hostOf(ytdlp.getURL());
+    }
+
+    /**
+     * Creates a task which writes the tags and the cover art itself, once yt-dlp
+     * extracted the audio. It saves the metadata pass of yt-dlp, and the file
+     * isn't parsed after the download: the {@link OpusFile} is built from the tags.
+     *
+     * @param output output template of yt-dlp, may be null
+     * @param tags comments of the music, PURL is added to them
+     */
+    public SimpleDownloadTask(Music music, String url, String output, Map<String, String> tags) {
+        this.music = music;
+        this.ytdlp = audioOnly(Objects.requireNonNull(url));
+        if (output != null) {
+            ytdlp.setOutput(output);
+        }
+        this.tags = Map.copyOf(tags);
+        this.host = hostOf(url);
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     @Override
     public void download() throws Exception {
-        LOGGER.info("Downloading {} to {}", ytdlp.getURL(), ytdlp.getOutput());
+        LOGGER.info("Downloading {} to {} (attempt {})", ytdlp.getURL(), ytdlp.getOutput(), getAttempts());
+        downloadPath = null;
         progress.reset();
         progress.addOptions(ytdlp);
 
+        Path thumbnail = null;
+        if (tags != null) {
+            Path root = DownloadManager.getDownloadRoot();
+            thumbnail = root.resolve(".thumbnail-" + getID() + ".png");
+            ytdlp.writeThumbnails(true, root.resolve(".thumbnail-" + getID() + ".%(ext)s").toString(), "png");
+        }
 
-        ProcessBuilder builder = ytdlp.createProcess();
-        LOGGER.debug("Executing {}", builder.command());
-
-        process = ytdlp.createProcess().start();
-
-        Future<?> err = READ_ERR_EXECUTOR.submit(() -> read(process.errorReader(), false));
-        read(process.inputReader(), true);
-        err.get();
+        try {
+            YTDLPProcess p = new YTDLPProcess(ytdlp, progress, this::onEvent);
+            process = p;
+            if (isCanceled()) {
+                p.destroy(); // canceled before process was set
+            }
+            p.run(null);
 
-        if (errors != null) {
-            throw new IOException(errors.toString());
-        }
+            String errors = p.getErrors();
+            if (errors != null) {
+                throw DownloadException.fromYTDLPErrors(errors);
+            }
+            if (downloadPath == null) {
+                throw new DownloadException("yt-dlp didn't print the path of " + ytdlp.getURL(), false);
+            }
 
-        if (music != null) {
-            OpusFile file = new OpusFile(downloadPath);
+            OpusFile file;
+            if (tags != null) {
+                file = writeTags(thumbnail);
+            } else if (music != null) {
+                file = OpusFileIndex.getInstance().load(downloadPath);
+            } else {
+                file = null;
+            }
 
-            SwingUtilities.invokeLater(() -> {
-                music.set(file);
-                music.notifyChanges();
-            });
+            if (music != null) {
+                SwingUtilities.invokeLater(() -> {
+                    music.set(file);
+                    music.notifyChanges();
+                });
+            }
+        } finally {
+            if (thumbnail != null) {
+                Files.deleteIfExists(thumbnail);
+            }
         }
     }
 
-    private Void read(BufferedReader br, boolean std) throws IOException {
-        String l;
-        while ((l = br.readLine()) != null) {
-            LOGGER.trace("YT-DLP: {}", l);
-            doRead(l, std);
+    /**
+     * Replaces the comments of the downloaded file by the tags and the thumbnail,
+     * then adds the file to the index.
+     */
+    private OpusFile writeTags(Path thumbnail) throws IOException, InterruptedException {
+        OpusFile file = new OpusFile();
+        tags.forEach(file::put);
+        file.put("PURL", ytdlp.getURL());
+
+        OpusMetadataWriter omw = file.prepareSave(downloadPath);
+        if (Files.exists(thumbnail)) {
+            omw.addCoverArt(thumbnail, null, CoverType.COVER_FRONT);
         }
+        file.saveNew(omw);
 
-        br.close();
-        return null;
+        OpusFileIndex.getInstance().put(file);
+        return file;
     }
 
-    private void doRead(String line, boolean std) {
-        if (progress.parse(line)) {
-            return; // line indicates progression
-        }
-
-        if (std) {
-            if (music != null) {
-                downloadPath = Path.of(line);
-            }
-        } else if (!line.startsWith("WARNING")) {
-            if (errors == null) {
-                errors = new StringBuilder();
-            } else {
-                errors.append(System.lineSeparator());
+    private void onEvent(YTDLPProcess.Event event) {
+        switch (event.type()) {
+            case PROGRESS -> {
+                if (progress instanceof AbstractProgress p && p.getPostprocessor() != null) {
+                    startPostProcessing();
+                }
             }
+            case OUTPUT -> downloadPath = Path.of(event.line());
+            default -> {}
         }
     }
 
     @Override
     protected void cancelImpl() {
-        if (process != null) {
-            process.destroy();
+        YTDLPProcess p = process;
+        if (p != null) {
+            p.destroy();
         }
         progress.setCanceled();
     }
 
+    @Override
+    public String getHost() {
+        return host;
+    }
+
     @Override
     public String getDescription() {
         return "Downloading " + ytdlp.getURL();
@@ -198,22 +262,22 @@ public class SimpleDownloadTask extends DownloadTask {
         }
 
         @Override
-        public void update(AbstractProgress progress) {
+        public void update(AbstractProgress.Snapshot progress) {
             setProgressBarValues(downloadProgressBar, progress);
 
             StringBuilder sb = new StringBuilder();
             boolean space = false;
-            if (progress.getSpeed() >= 0) {
-                sb.append(Units.humanReadableSpeed((long) progress.getSpeed()));
+            if (progress.speed() >= 0) {
+                sb.append(Units.humanReadableSpeed((long) progress.speed()));
                 space = true;
             }
-            if (progress.getETA() >= 0) {
+            if (progress.eta() >= 0) {
                 if (space) {
                     sb.append(" ");
                 }
-                sb.append("ETA ").append(progress.getETA()).append(" s");
+                sb.append("ETA ").append(progress.eta()).append(" s");
             }
-            if (progress.isCanceled()) {
+            if (progress.canceled()) {
                 if (space) {
                     sb.append(" ");
                 }
@@ -27,6 +27,17 @@ public class YTDLP {
         this.url = url;
     }
 
+    private YTDLP() {
+        this.url = null;
+    }
+
+    /**
+     * @return a yt-dlp invocation that reads URLs, one per line, from its standard input
+     */
+    public static YTDLP batch() {
+        return new YTDLP();
+    }
+
     public YTDLP useWindowsFilenames(boolean enable) {
         windowsFilenames.enable(enable);
         return this;
@@ -117,7 +128,12 @@ public class YTDLP {
     public List<String> getOptions() {
         List<String> options = new ArrayList<>();
         options.add("yt-dlp");
-        options.add(url);
+        if (url != null) {
+            options.add(url);
+        } else {
+            options.add("--batch-file");
+            options.add("-");
+        }
         windowsFilenames.populate(options);
         embedThumbnail.populate(options);
         playlistDownload.populate(options);
@@ -137,13 +153,20 @@ public class YTDLP {
         return new ProcessBuilder(getOptions());
     }
 
+    /**
+     * @return the URL to download or null if URLs are read from the standard input
+     */
     public String getURL() {
         return url;
     }
 
+    public boolean isBatch() {
+        return url == null;
+    }
+
 
     public YTDLP copy() {
-        YTDLP ytdlp = new YTDLP(url);
+        YTDLP ytdlp = url == null ? new YTDLP() : new YTDLP(url);
         ytdlp.windowsFilenames.enable(windowsFilenames.enabled);
         ytdlp.embedThumbnail.enable(embedThumbnail.enabled);
         ytdlp.playlistDownload.enable(playlistDownload.enabled);
@@ -0,0 +1,276 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A yt-dlp process. Its standard output and error are read by two virtual threads,
+ * which turn each line into an {@link Event} for the {@link EventHandler}. The last
+ * errors are kept in a ring buffer, so a process can't exhaust memory by printing
+ * errors. Destroying the process also destroys the processes started by yt-dlp.
+ */
+final class YTDLPProcess {
+
+    private static final Logger LOGGER = LogManager.getLogger(YTDLPProcess.class);
+
+    private static final ThreadFactory READER_FACTORY = Thread.ofVirtual().name("yt-dlp read-", 0).factory();
+
+    private static final int MAX_ERRORS = 64;
+
+    // time given to yt-dlp and its children to exit after being destroyed, before they are killed
+    private static final long DESTROY_TIMEOUT = 5; // seconds
+
+    private final YTDLP ytdlp;
+    private final Progress progress;
+    private final EventHandler handler;
+
+    private final String[] errors = new String[MAX_ERRORS]; // guarded by errors
+    private int errorCount; // guarded by errors
+
+    private final Object lock = new Object();
+    private Process process; // guarded by lock
+    private boolean destroyed; // guarded by lock
+    private Exception failure; // guarded by lock
+
+    /**
+     * @param progress parses progress lines, which are then sent as {@link Event.Type#PROGRESS} events
+     * @param handler receives events of both pipes: it is called by two threads
+     */
+    YTDLPProcess(YTDLP ytdlp, Progress progress, EventHandler handler) {
+        this.ytdlp = Objects.requireNonNull(ytdlp);
+        this.progress = Objects.requireNonNull(progress);
+        this.handler = Objects.requireNonNull(handler);
+    }
+
+    /**
+     * Starts yt-dlp and waits until it exits and all its output is handled.
+     *
+     * @param input written to the standard input of yt-dlp, may be null
+     * @return the exit code of yt-dlp
+     * @throws CancellationException if the process was destroyed
+     * @throws IOException if yt-dlp can't be started or if the handler failed
+     */
+    int run(String input) throws IOException, InterruptedException {
+        ProcessBuilder builder = ytdlp.createProcess();
+
+        Process p;
+        synchronized (lock) {
+            if (destroyed) {
+                throw new CancellationException("yt-dlp process destroyed");
+            }
+
+            LOGGER.debug("Executing {}", builder.command());
+            p = builder.start();
+            process = p;
+        }
+
+        Thread out = READER_FACTORY.newThread(() -> read(p.inputReader(), true));
+        Thread err = READER_FACTORY.newThread(() -> read(p.errorReader(), false));
+        out.start();
+        err.start();
+
+        try {
+            try (Writer w = p.outputWriter()) {
+                if (input != null) {
+                    w.write(input);
+                }
+            } catch (IOException e) {
+                // yt-dlp exited before reading its input: the readers report why
+                LOGGER.debug("Failed to write to yt-dlp", e);
+            }
+
+            out.join();
+            err.join();
+            p.waitFor();
+        } catch (InterruptedException e) {
+            destroy();
+            throw e;
+        }
+
+        Exception f;
+        synchronized (lock) {
+            if (destroyed) {
+                throw new CancellationException("yt-dlp process destroyed");
+            }
+            f = failure;
+        }
+
+        switch (f) {
+            case null -> {}
+            case IOException e -> throw e;
+            case RuntimeException e -> throw e;
+            default -> throw new IOException(f);
+        }
+
+        return p.exitValue();
+    }
+
+    private void read(BufferedReader br, boolean std) {
+        try (br) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                LOGGER.trace("YT-DLP: {}", line);
+                dispatch(line, std);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void dispatch(String line, boolean std) {
+        Event.Type type;
+        if (progress.parse(line)) {
+            type = Event.Type.PROGRESS;
+        } else if (std) {
+            type = Event.Type.OUTPUT;
+        } else if (line.startsWith("WARNING")) {
+            type = Event.Type.WARNING;
+        } else {
+            type = Event.Type.ERROR;
+            addError(line);
+        }
+
+        try {
+            handler.onEvent(new Event(type, line));
+        } catch (IOException | RuntimeException e) {
+            // the pipe is still read until the end, otherwise yt-dlp may block
+            fail(e);
+        }
+    }
+
+    private void fail(Exception e) {
+        synchronized (lock) {
+            if (destroyed) {
+                return; // the pipes are closed when the process is destroyed
+            }
+
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    private void addError(String line) {
+        synchronized (errors) {
+            errors[errorCount % MAX_ERRORS] = line;
+            errorCount++;
+        }
+    }
+
+    /**
+     * @return the last errors printed by yt-dlp, one per line, or null if it didn't print any
+     */
+    String getErrors() {
+        synchronized (errors) {
+            if (errorCount == 0) {
+                return null;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            int first = Math.max(0, errorCount - MAX_ERRORS);
+            if (first > 0) {
+                sb.append(first).append(" errors omitted").append(System.lineSeparator());
+            }
+
+            for (int i = first; i < errorCount; i++) {
+                if (i > first) {
+                    sb.append(System.lineSeparator());
+                }
+                sb.append(errors[i % MAX_ERRORS]);
+            }
+
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Destroys yt-dlp and the processes it started, like ffmpeg. Processes still
+     * alive after a few seconds are killed. If the process isn't started yet,
+     * it will never be.
+     */
+    void destroy() {
+        Process p;
+        synchronized (lock) {
+            if (destroyed) {
+                return;
+            }
+            destroyed = true;
+            p = process;
+        }
+
+        if (p == null) {
+            return;
+        }
+
+        // children must be listed before yt-dlp exits: they are then orphaned and can't be found
+        List<ProcessHandle> tree = new ArrayList<>(p.descendants().toList());
+        tree.add(p.toHandle());
+        for (ProcessHandle h : tree) {
+            h.destroy();
+        }
+
+        Thread.ofVirtual().name("yt-dlp destroy").start(() -> {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DESTROY_TIMEOUT);
+
+            for (ProcessHandle h : tree) {
+                try {
+                    h.onExit().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    LOGGER.debug("Killing process {}", h.pid());
+                    h.destroyForcibly();
+                } catch (InterruptedException | ExecutionException e) {
+                    LOGGER.debug("Failed to wait for process {}", h.pid(), e);
+                }
+            }
+        });
+    }
+
+    @FunctionalInterface
+    interface EventHandler {
+
+        void onEvent(Event event) throws IOException;
+    }
+
+    /**
+     * A line printed by yt-dlp.
+     */
+    record Event(Type type, String line) {
+
+        enum Type {
+            /**
+             * A line parsed by the {@link Progress}
+             */
+            PROGRESS,
+
+            /**
+             * Any other line of the standard output, like the path of
+             * the downloaded file printed by {@code --print}
+             */
+            OUTPUT,
+
+            /**
+             * A warning printed on the standard error
+             */
+            WARNING,
+
+            /**
+             * Any other line of the standard error
+             */
+            ERROR
+        }
+    }
+}
@@ -36,8 +36,13 @@ public class CoverArt implements LazyImage {
     }
 
     @Override
-    public LazyImage transformAsync(Function<BufferedImage, BufferedImage> transform) {
-        return image.transformAsync(transform);
+    public void removeCallback(BiConsumer<BufferedImage, Throwable> callback) {
+        image.removeCallback(callback);
+    }
+
+    @Override
+    public LazyImage transformAsync(String name, Function<BufferedImage, BufferedImage> transform) {
+        return image.transformAsync(name, transform);
     }
 
     @Override
@@ -50,6 +55,20 @@ public class CoverArt implements LazyImage {
         return image.getException();
     }
 
+    @Override
+    public BufferedImage getPreview(int size) throws Exception {
+        return image.getPreview(size);
+    }
+
+    @Override
+    public String getIdentity() {
+        return image.getIdentity();
+    }
+
+    public LazyImage getLazyImage() {
+        return image;
+    }
+
     public void setWidth(int width) {
         this.width = width;
     }
@@ -5,7 +5,9 @@ import fr.poulpogaz.json.JsonException;
 import fr.poulpogaz.json.JsonReader;
 import fr.poulpogaz.json.utils.Pair;
 import fr.poulpogaz.musictagger.opus.OpusFile;
+import fr.poulpogaz.musictagger.opus.OpusFileIndex;
 import fr.poulpogaz.musictagger.ui.MTFrame;
+import fr.poulpogaz.musictagger.utils.EDTExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -13,21 +15,24 @@ import javax.swing.*;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
-public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
+public class MusicLoader extends SwingWorker<Void, Void> {
 
     private static final Object LOCK = new Object();
 
     private static MusicLoader loader;
-    private static final ExecutorService counter = Executors.newSingleThreadExecutor();
+
+    // opus files are parsed on virtual threads, at most 'parallelism' at the same time
+    private static final ExecutorService PARSER = Executors.newVirtualThreadPerTaskExecutor();
+    private static volatile int parallelism = Math.max(4, Runtime.getRuntime().availableProcessors());
 
     public static void load(Template dest, File[] files) {
         synchronized (LOCK) {
@@ -41,7 +46,23 @@ public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
     }
 
     public static void shutdown() {
-        counter.shutdown();
+        PARSER.shutdown();
+    }
+
+    /**
+     * Sets the maximal number of opus files that are parsed at the same time.
+     * Takes effect on the next call to {@link #load(Template, File[])} that
+     * starts a new loader.
+     */
+    public static void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        MusicLoader.parallelism = parallelism;
+    }
+
+    public static int getParallelism() {
+        return parallelism;
     }
 
 
@@ -51,8 +72,14 @@ public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
     private final Queue<Task> queue = new ArrayDeque<>();
     private final AtomicLong fileCount = new AtomicLong();
 
+    // parsed files, filled by PARSER threads and drained by the loader thread
+    private final BlockingQueue<Parsed> parsed = new LinkedBlockingQueue<>();
+    private final Semaphore permits = new Semaphore(parallelism);
+    private int pending;
+
     private Chunk chunk;
-    private long lastPublish = 0;
+    // true while a chunk waits to be added to its template by the EDT
+    private final AtomicBoolean chunkPending = new AtomicBoolean();
 
 
     private MusicLoader() {}
@@ -60,25 +87,11 @@ public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
     public void offer(Template defaultTemplate, File[] files) {
         queue.add(new Task(defaultTemplate.getName(), files));
 
+        // directories are counted while they are walked
         for (File file : files) {
-            if (file.isDirectory()) {
-                counter.execute(() -> countFiles(file.toPath()));
-            } else {
-                fileCount.incrementAndGet();
-            }
-        }
-    }
-
-    private void countFiles(Path path) {
-        try (Stream<Path> stream = Files.walk(path)) {
-            Iterator<Path> it = stream.filter(this::isOpusFile).iterator();
-            while (it.hasNext()) {
-                it.next();
+            if (!file.isDirectory()) {
                 fileCount.incrementAndGet();
             }
-
-        } catch (IOException e) {
-            LOGGER.debug("Count files at {} failed", path, e);
         }
     }
 
@@ -86,17 +99,51 @@ public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
     @Override
     protected Void doInBackground() {
         LOGGER.debug("Music loader start");
-        while (true) {
-            Task task;
+        try {
+            load();
+        } catch (InterruptedException e) {
+            LOGGER.warn("Music loader interrupted", e);
+        } finally {
             synchronized (LOCK) {
-                if (queue.isEmpty()) {
+                if (loader == this) {
                     loader = null;
-                    break;
                 }
+            }
+        }
 
+        LOGGER.debug("Music loader stopped");
+        return null;
+    }
+
+    private void load() throws InterruptedException {
+        while (true) {
+            Task task;
+            synchronized (LOCK) {
                 task = queue.poll();
             }
 
+            if (task == null) {
+                waitParsing();
+                sendChunk(null, true);
+                chunk = null;
+
+                try {
+                    OpusFileIndex.getInstance().write();
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to write opus file index", e);
+                }
+
+                // files offered meanwhile are loaded by this loader: a new loader
+                // starts only once this one doesn't parse anything
+                synchronized (LOCK) {
+                    if (queue.isEmpty()) {
+                        loader = null;
+                        return;
+                    }
+                }
+                continue;
+            }
+
             if (chunk == null) {
                 chunk = new Chunk(task.defaultTemplateName);
             }
@@ -123,26 +170,25 @@ public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
                     } else {
                         LOGGER.warn("Invalid file type: {}", path);
                     }
+                } catch (InterruptedException e) {
+                    throw e;
                 } catch (Exception e) {
                     LOGGER.warn("Failed to load music", e);
                 }
             }
         }
-
-        sendChunk(null, true);
-        LOGGER.debug("Music loader stopped");
-        return null;
     }
 
-    private void processDirectory(String defaultTemplate, Path directory) {
+    private void processDirectory(String defaultTemplate, Path directory) throws InterruptedException {
         try (Stream<Path> stream = Files.walk(directory)) {
             Iterator<Path> it = stream.filter(this::isOpusFile).iterator();
 
             while (it.hasNext()) {
                 Path path = it.next();
+                fileCount.incrementAndGet();
                 processMusic(defaultTemplate, path);
             }
-        } catch (IOException e) {
+        } catch (IOException | UncheckedIOException e) {
             LOGGER.warn("Exception while processing directory {}", directory, e);
         }
     }
@@ -168,10 +214,35 @@ public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
         }
     }
 
-    private void processMusic(String defaultTemplate, Path path) {
-        Pair<Music, String> music = null;
+    /**
+     * Submits the file to the parser pool. Blocks while
+     * {@link #getParallelism()} files are being parsed.
+     * Parsed files are added to the chunk by the loader thread.
+     */
+    private void processMusic(String defaultTemplate, Path path) throws InterruptedException {
+        drainParsed();
+
+        permits.acquire();
+        pending++;
         try {
-            OpusFile file = new OpusFile(path);
+            PARSER.execute(() -> {
+                try {
+                    parsed.add(parseMusic(defaultTemplate, path));
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            pending--;
+            fileCount.decrementAndGet();
+            LOGGER.debug("Parser is shutdown, cannot read {}", path, e);
+        }
+    }
+
+    private Parsed parseMusic(String defaultTemplate, Path path) {
+        try {
+            OpusFile file = OpusFileIndex.getInstance().load(path);
             List<String> templates = file.removeAll("TEMPLATE");
             String template;
             if (templates.isEmpty()) {
@@ -179,27 +250,60 @@ public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
             } else {
                 template = templates.getFirst();
             }
-            music = new Pair<>(new Music(file), template);
-        } catch (IOException e) {
+            return new Parsed(defaultTemplate, new Music(file), template);
+        } catch (IOException | RuntimeException e) {
             LOGGER.debug("Failed to read opus file: {}", path, e);
-        } finally {
-            if (music != null) {
-                chunk.addMusic(music.getLeft(), music.getRight());
-            }
+            return new Parsed(defaultTemplate, null, null);
+        }
+    }
 
-            fileCount.decrementAndGet();
-            sendChunk(defaultTemplate, false);
+    private void drainParsed() {
+        Parsed p;
+        while ((p = parsed.poll()) != null) {
+            addParsed(p);
         }
     }
 
+    private void waitParsing() throws InterruptedException {
+        while (pending > 0) {
+            addParsed(parsed.take());
+        }
+    }
+
+    private void addParsed(Parsed p) {
+        pending--;
+        if (p.music() != null) {
+            if (!p.defaultTemplate().equals(chunk.defaultTemplate)) {
+                if (chunk.musics.isEmpty()) {
+                    chunk = new Chunk(p.defaultTemplate());
+                } else {
+                    sendChunk(p.defaultTemplate(), true);
+                }
+            }
+            chunk.addMusic(p.music(), p.template());
+        }
 
+        fileCount.decrementAndGet();
+        sendChunk(p.defaultTemplate(), false);
+    }
+
+
+    /**
+     * Sends the chunk to the EDT. Unless forced, the chunk is sent only if the EDT added
+     * the previous one, so musics parsed while the EDT is busy are added together.
+     */
     private void sendChunk(String defaultTemplate, boolean force) {
-        if (force || System.currentTimeMillis() - lastPublish >= 200
+        if (force || !chunkPending.get()
                 || (chunk != null && !chunk.musics.isEmpty() && !chunk.defaultTemplate.equals(defaultTemplate))) {
-            chunk.remaining = fileCount.get();
-            publish(chunk);
+            Chunk c = chunk;
+            c.remaining = fileCount.get();
+
+            chunkPending.set(true);
+            EDTExecutor.getInstance().execute(() -> {
+                chunkPending.set(false);
+                addChunk(c);
+            });
             chunk = new Chunk(defaultTemplate);
-            lastPublish = System.currentTimeMillis();
         }
     }
 
@@ -217,21 +321,17 @@ public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
 
 
 
-    @Override
-    protected void process(List<Chunk> chunks) {
-        for (Chunk chunk : chunks) {
-            for (int i = 0; i < chunk.musics.size(); i++) {
-                Music music = chunk.musics.get(i);
+    private void addChunk(Chunk chunk) {
+        for (int i = 0; i < chunk.musics.size(); i++) {
+            Music music = chunk.musics.get(i);
 
-                String templateName = chunk.templateNames.get(i);
-                Template template = getTemplate(templateName, chunk.defaultTemplate);
+            String templateName = chunk.templateNames.get(i);
+            Template template = getTemplate(templateName, chunk.defaultTemplate);
 
-                template.getData().addMusic(music);
-            }
+            template.getData().addMusic(music);
         }
 
-        Chunk d = chunks.getLast();
-        MTFrame.getInstance().setLoadingFileCount(Math.max(d.remaining, 0));
+        MTFrame.getInstance().setLoadingFileCount(Math.max(chunk.remaining, 0));
     }
 
     private Template getTemplate(String templateName, String defaultTemplateName) {
@@ -286,4 +386,8 @@ public class MusicLoader extends SwingWorker<Void, MusicLoader.Chunk> {
     private record Task(String defaultTemplateName, File[] files) {
 
     }
+
+    private record Parsed(String defaultTemplate, Music music, String template) {
+
+    }
 }
@@ -0,0 +1,315 @@
+package fr.poulpogaz.musictagger.model;
+
+import fr.poulpogaz.musictagger.opus.OpusFile;
+import fr.poulpogaz.musictagger.opus.OpusMetadataWriter;
+import fr.poulpogaz.musictagger.opus.SaveStrategy;
+import fr.poulpogaz.musictagger.ui.MTFrame;
+import fr.poulpogaz.musictagger.ui.dialogs.Dialogs;
+import org.apache.commons.collections4.MapIterator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Saves modified musics. New cover arts are encoded on the {@link #ENCODER} pool
+ * (CPU bound), then files are written by {@link #getIOParallelism()} threads
+ * (I/O bound). Encoded files wait for a writer in a bounded queue, so the
+ * encoders can't get too far ahead of the disk.
+ */
+public class MusicSaver extends SwingWorker<Void, MusicSaver.Result> {
+
+    private static final Logger LOGGER = LogManager.getLogger(MusicSaver.class);
+
+    private static final ExecutorService ENCODER = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            Thread.ofPlatform().name("cover-encoder-", 0).daemon().factory());
+
+    private static volatile int ioParallelism = 4;
+
+    private static MusicSaver saver;
+
+    /**
+     * Saves all musics on background threads.
+     * @return false if musics are already being saved
+     */
+    public static boolean save(List<Music> musics) {
+        if (saver != null) {
+            return false;
+        }
+
+        saver = new MusicSaver(musics);
+        saver.execute();
+        return true;
+    }
+
+    public static boolean isSaving() {
+        return saver != null;
+    }
+
+    /**
+     * Cancels the current save. Files being written are fully written: musics are
+     * still being saved until then.
+     */
+    public static void cancelSave() {
+        if (saver != null) {
+            saver.cancel(true);
+        }
+    }
+
+    public static void shutdown() {
+        ENCODER.shutdown();
+    }
+
+    /**
+     * Sets the number of files that are written at the same time.
+     * Takes effect on the next save.
+     */
+    public static void setIOParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        MusicSaver.ioParallelism = parallelism;
+    }
+
+    public static int getIOParallelism() {
+        return ioParallelism;
+    }
+
+
+
+    // marks the end of the queue
+    private static final Job END = new Job(null, null, null);
+
+    private final List<Music> musics;
+    private final int writerCount = ioParallelism;
+
+    private final BlockingQueue<Job> toWrite = new ArrayBlockingQueue<>(2 * writerCount);
+    private final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+
+    private final List<Result> failures = new ArrayList<>();
+    private int saved;
+
+    private MusicSaver(List<Music> musics) {
+        this.musics = List.copyOf(musics);
+    }
+
+    @Override
+    protected Void doInBackground() throws InterruptedException {
+        LOGGER.debug("Saving {} musics with {} writers", musics.size(), writerCount);
+
+        List<Thread> writers = new ArrayList<>(writerCount);
+        for (int i = 0; i < writerCount; i++) {
+            // not daemons, even though SwingWorker threads are: the JVM must not
+            // exit while a file is rewritten in place, it would be corrupted
+            writers.add(Thread.ofPlatform().name("music-saver-" + i).daemon(false).start(this::writeLoop));
+        }
+
+        int submitted = 0;
+        int done = 0;
+        try {
+            for (Music music : musics) {
+                if (isCancelled()) {
+                    break;
+                }
+
+                Job job = createJob(music);
+                if (job.file().needsEncoding()) {
+                    ENCODER.execute(() -> encode(job));
+                } else {
+                    toWrite.put(job);
+                }
+                submitted++;
+
+                done += publishResults();
+            }
+
+            for (; done < submitted; done++) {
+                publish(results.take());
+            }
+        } finally {
+            // writers skip remaining jobs if cancelled
+            Thread.interrupted();
+            for (int i = 0; i < writerCount; i++) {
+                toWrite.put(END);
+            }
+
+            // done() is called as soon as the save is cancelled, while writers may still
+            // rewrite files in place: a new save can only start once they all exited
+            joinUninterruptibly(writers);
+            SwingUtilities.invokeLater(() -> {
+                if (saver == this) {
+                    saver = null;
+                }
+            });
+        }
+
+        LOGGER.debug("Musics saved");
+        return null;
+    }
+
+    private static void joinUninterruptibly(List<Thread> threads) {
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int publishResults() {
+        int n = 0;
+        Result r;
+        while ((r = results.poll()) != null) {
+            publish(r);
+            n++;
+        }
+
+        return n;
+    }
+
+    private Job createJob(Music music) {
+        OpusFile file = music.getOpusFile();
+        file.clearCoverArt();
+        file.clear();
+
+        for (MapIterator<String, String> it = music.metadataIterator(); it.hasNext(); ) {
+            it.next();
+            file.put(it.getKey(), it.getValue());
+        }
+
+        for (CoverArt cover : music.getCoverArts()) {
+            file.addCoverArt(cover);
+        }
+
+        Template t = music.getTemplate();
+        if (t != null) {
+            file.put("TEMPLATE", t.getName());
+        }
+
+        return new Job(music, file, null);
+    }
+
+    private void encode(Job job) {
+        if (isCancelled()) {
+            results.add(new Result(job.music(), Status.CANCELLED, null));
+            return;
+        }
+
+        try {
+            OpusMetadataWriter writer = job.file().prepareSave(job.file().getPath());
+            Job encoded = new Job(job.music(), job.file(), writer);
+
+            // writers may have stopped if the save was cancelled
+            while (!toWrite.offer(encoded, 100, TimeUnit.MILLISECONDS)) {
+                if (isCancelled()) {
+                    results.add(new Result(job.music(), Status.CANCELLED, null));
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            results.add(new Result(job.music(), Status.FAILED, e));
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            Job job;
+            while ((job = toWrite.take()) != END) {
+                results.add(write(job));
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Music saver interrupted", e);
+        }
+    }
+
+    private Result write(Job job) {
+        if (isCancelled()) {
+            return new Result(job.music(), Status.CANCELLED, null);
+        }
+
+        try {
+            OpusFile file = job.file();
+            OpusMetadataWriter writer = job.writer();
+            if (writer == null) {
+                writer = file.prepareSave(file.getPath());
+            }
+
+            file.save(writer, SaveStrategy.IN_PLACE);
+            return new Result(job.music(), Status.SAVED, null);
+        } catch (Exception e) {
+            return new Result(job.music(), Status.FAILED, e);
+        }
+    }
+
+    @Override
+    protected void process(List<Result> chunks) {
+        for (Result result : chunks) {
+            switch (result.status()) {
+                case SAVED -> {
+                    saved++;
+                    result.music().notifyChanges();
+                }
+                case FAILED -> {
+                    LOGGER.error("Failed to save music to {}", result.music().getPath(), result.error());
+                    failures.add(result);
+                }
+                case CANCELLED -> LOGGER.debug("Save of {} cancelled", result.music().getPath());
+            }
+        }
+
+        MTFrame.getInstance().setSavingFileCount(musics.size() - saved - failures.size());
+    }
+
+    @Override
+    protected void done() {
+        try {
+            get();
+        } catch (CancellationException e) {
+            LOGGER.info("Save cancelled. {} musics saved", saved);
+        } catch (InterruptedException | ExecutionException e) {
+            LOGGER.error("Failed to save musics", e);
+        }
+
+        MTFrame.getInstance().setSavingFileCount(0);
+
+        if (!failures.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Failed to save ").append(failures.size()).append(" musics:");
+            for (int i = 0; i < Math.min(failures.size(), 10); i++) {
+                sb.append('\n').append(failures.get(i).music().getPath());
+            }
+            if (failures.size() > 10) {
+                sb.append("\n...");
+            }
+
+            Dialogs.showError(MTFrame.getInstance(), sb.toString(), failures.getFirst().error());
+        }
+    }
+
+
+    private record Job(Music music, OpusFile file, OpusMetadataWriter writer) {
+
+    }
+
+    public enum Status {
+        SAVED,
+        FAILED,
+        CANCELLED
+    }
+
+    public record Result(Music music, Status status, Exception error) {
+
+    }
+}
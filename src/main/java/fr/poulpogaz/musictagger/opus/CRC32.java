@@ -1,14 +1,18 @@
 package fr.poulpogaz.musictagger.opus;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 // https://xiph.org/ogg/doc/framing.html
 // http://www.ross.net/crc/download/crc_v3.txt
+// Slicing-by-8: https://www.researchgate.net/publication/3387143_Novel_Table_Lookup-Based_Algorithms_for_High-Performance_CRC_Generation
 public class CRC32 {
 
     private static final int GENERATOR_POLYNOMIAL = 0x04C11DB7;
 
-    private static final int[] CRC_TABLE = new int[256];
+    // CRC_TABLE[0] is the classic table: the CRC of a single byte.
+    // CRC_TABLE[k][i] is the CRC of byte i followed by k zero bytes.
+    private static final int[][] CRC_TABLE = new int[8][256];
 
     static {
         int crc;
@@ -23,25 +27,80 @@ public class CRC32 {
                 }
             }
 
-            CRC_TABLE[i] = crc;
+            CRC_TABLE[0][i] = crc;
+        }
+
+        for (int k = 1; k < 8; k++) {
+            for (int i = 0; i < 256; i++) {
+                int prev = CRC_TABLE[k - 1][i];
+                CRC_TABLE[k][i] = (prev << 8) ^ CRC_TABLE[0][(prev >>> 24) & 0xff];
+            }
         }
     }
 
 
     public static int getCRC(ByteBuffer buffer) {
-        int crc = 0;
-        while (buffer.hasRemaining()) {
-            crc = crc << 8 ^ CRC_TABLE[ ((crc >>> 24) & 0xff) ^ (buffer.get() & 0xff) ];
-        }
+        int crc = update(0, buffer, buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
 
         return crc;
     }
 
     public static int getCRC(ByteBuffer buffer, int index, int length) {
-        int crc = 0;
+        return update(0, buffer, index, length);
+    }
+
+    /**
+     * Continues the computation of a CRC with the bytes between index and
+     * index + length. The position of the buffer isn't modified.
+     * Bytes are processed eight at a time.
+     */
+    public static int update(int crc, ByteBuffer buffer, int index, int length) {
+        int end = index + length;
+        boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+
+        int[] t0 = CRC_TABLE[0];
+        int[] t1 = CRC_TABLE[1];
+        int[] t2 = CRC_TABLE[2];
+        int[] t3 = CRC_TABLE[3];
+        int[] t4 = CRC_TABLE[4];
+        int[] t5 = CRC_TABLE[5];
+        int[] t6 = CRC_TABLE[6];
+        int[] t7 = CRC_TABLE[7];
+
+        for (; index + 8 <= end; index += 8) {
+            long l = buffer.getLong(index);
+            if (littleEndian) {
+                l = Long.reverseBytes(l);
+            }
+
+            // the first byte is the most significant byte
+            int high = crc ^ (int) (l >>> 32);
+            int low = (int) l;
+
+            crc = t7[high >>> 24] ^ t6[(high >>> 16) & 0xff] ^ t5[(high >>> 8) & 0xff] ^ t4[high & 0xff]
+                    ^ t3[low >>> 24] ^ t2[(low >>> 16) & 0xff] ^ t1[(low >>> 8) & 0xff] ^ t0[low & 0xff];
+        }
+
+        for (; index < end; index++) {
+            crc = (crc << 8) ^ t0[ ((crc >>> 24) & 0xff) ^ (buffer.get(index) & 0xff) ];
+        }
+
+        return crc;
+    }
+
+    public static int update(int crc, byte b) {
+        return (crc << 8) ^ CRC_TABLE[0][ ((crc >>> 24) & 0xff) ^ (b & 0xff) ];
+    }
+
+    /**
+     * Byte at a time version of {@link #update(int, ByteBuffer, int, int)}.
+     * Used as a reference by tests and benchmarks.
+     */
+    static int updateBytewise(int crc, ByteBuffer buffer, int index, int length) {
         int end = index + length;
         for (; index < end; index++) {
-            crc = (crc << 8) ^ CRC_TABLE[ ((crc >>> 24) & 0xff) ^ (buffer.get(index) & 0xff) ];
+            crc = (crc << 8) ^ CRC_TABLE[0][ ((crc >>> 24) & 0xff) ^ (buffer.get(index) & 0xff) ];
         }
 
         return crc;
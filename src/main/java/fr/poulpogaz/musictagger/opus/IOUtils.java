@@ -112,6 +112,22 @@ public class IOUtils {
         os.write(bytes);
     }
 
+    /**
+     * Transfers count bytes from src, starting at srcPos, to dest, starting at destPos.
+     * The position of src is not modified. The position of dest is set to destPos + count.
+     */
+    public static void transferFully(FileChannel src, long srcPos, long count, FileChannel dest, long destPos)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = src.transferTo(srcPos + transferred, count - transferred, dest.position(destPos + transferred));
+            if (n <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            transferred += n;
+        }
+    }
+
     /**
      * Moves every byte after src to dest and reduce the file size by src - dest
      */
@@ -2,6 +2,8 @@ package fr.poulpogaz.musictagger.opus;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
@@ -14,26 +16,78 @@ public class OggInputStream implements Closeable {
     // allow storing at least one page
     private static final int BUFFER_SIZE = Integer.highestOneBit(OggPage.MAX_SIZE) << 1;
 
+    /**
+     * Creates an OggInputStream that memory-maps the file. Pages are read
+     * without copying: their payloads are views of the mapped file.
+     * The stream must be closed by the thread that created it and
+     * pages read from it can't be used after it is closed.
+     */
+    public static OggInputStream map(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return map(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Same as {@link #map(Path)} but maps the channel from its current position.
+     * If the file is too large to be mapped, a non-mapped OggInputStream is returned.
+     */
+    public static OggInputStream map(FileChannel channel) throws IOException {
+        long start = channel.position();
+        long size = channel.size() - start;
+        if (size > Integer.MAX_VALUE) {
+            return new OggInputStream(channel);
+        }
+
+        Arena arena = Arena.ofConfined();
+        try {
+            MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(size, 0), arena);
+            ByteBuffer buffer = segment.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+
+            return new OggInputStream(channel, buffer, arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+
+
     private final FileChannel channel;
-    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE)
-                                        .limit(0)
-                                        .order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer buffer;
+    private final Arena arena; // not null if the file is memory-mapped
 
     private OggPage nextPage = null;
     private long lastPageSize = 0;
     private long currentPagePosition = -1;
 
+    private VerificationPolicy policy = VerificationPolicy.ALL;
+    private boolean audioReached = false; // true if a page with a positive granule position was read
+
     public OggInputStream(Path file) throws IOException {
-        channel = FileChannel.open(file, StandardOpenOption.READ);
+        this(FileChannel.open(file, StandardOpenOption.READ));
     }
 
     public OggInputStream(FileChannel channel) {
+        this(channel,
+             ByteBuffer.allocate(BUFFER_SIZE).limit(0).order(ByteOrder.LITTLE_ENDIAN),
+             null);
+    }
+
+    private OggInputStream(FileChannel channel, ByteBuffer buffer, Arena arena) {
         this.channel = channel;
+        this.buffer = buffer;
+        this.arena = arena;
     }
 
 
     /**
-     * Read the next page and perform CRC verification.
+     * Read the next page and perform CRC verification according to the
+     * {@linkplain #setVerificationPolicy(VerificationPolicy) verification policy}.
      */
     public OggPage nextPage() throws IOException {
         return nextPage(null);
@@ -50,7 +104,10 @@ public class OggInputStream implements Closeable {
             throw new IOException("Unterminated Ogg page");
         }
 
-        next.finishReadPage(buffer);
+        next.finishReadPage(buffer, !isMapped(), shouldVerify(next));
+        if (next.getGranulePosition() > 0) {
+            audioReached = true;
+        }
 
         lastPageSize = nextPage.getPageSize();
         nextPage = null;
@@ -79,6 +136,14 @@ public class OggInputStream implements Closeable {
         }
     }
 
+    private boolean shouldVerify(OggPage page) {
+        return switch (policy) {
+            case ALL -> true;
+            case HEADERS -> !audioReached && page.getGranulePosition() <= 0;
+            case NONE -> false;
+        };
+    }
+
     private OggPage doPeakNextPage(OggPage dest) throws IOException {
         if (currentPagePosition < 0) {
             currentPagePosition = 0;
@@ -113,6 +178,11 @@ public class OggInputStream implements Closeable {
      * @throws IOException if any I/O exception occurs.
      */
     private boolean ensureDataAvailable(int N) throws IOException {
+        if (isMapped()) {
+            // the whole file is in the buffer
+            return buffer.remaining() < N;
+        }
+
         if (buffer.remaining() < N) {
             buffer.compact();
 
@@ -152,11 +222,17 @@ public class OggInputStream implements Closeable {
      */
     public OggPage readLastPage(int bitstreamSerialNumber) throws IOException {
         // read one page
-        long size = channel.size();
-        long newPos = Math.max(size - OggPage.MAX_SIZE, 0);
-        channel.position(newPos);
-        buffer.limit(0);
-        ensureDataAvailable((int) (size - newPos));
+        long newPos;
+        if (isMapped()) {
+            newPos = Math.max(buffer.limit() - OggPage.MAX_SIZE, 0);
+            buffer.position((int) newPos);
+        } else {
+            long size = channel.size();
+            newPos = Math.max(size - OggPage.MAX_SIZE, 0);
+            channel.position(newPos);
+            buffer.limit(0);
+            ensureDataAvailable((int) (size - newPos));
+        }
 
         // find last page
         int index = reverseFindInBuffer(OggPage.MAGIC_HEADER_BYTES);
@@ -175,8 +251,12 @@ public class OggInputStream implements Closeable {
         }
 
         // need to read the whole file
-        channel.position(0);
-        buffer.limit(0);
+        if (isMapped()) {
+            buffer.position(0);
+        } else {
+            channel.position(0);
+            buffer.limit(0);
+        }
 
         while ((page = nextPage()) != null) {
             if (page.bitstreamSerialNumber == bitstreamSerialNumber && page.isLastPage()) {
@@ -207,8 +287,26 @@ public class OggInputStream implements Closeable {
         return -1;
     }
 
+    public void setVerificationPolicy(VerificationPolicy policy) {
+        this.policy = Objects.requireNonNull(policy);
+    }
+
+    public VerificationPolicy getVerificationPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return true if the file is memory-mapped
+     */
+    public boolean isMapped() {
+        return arena != null;
+    }
+
     @Override
     public void close() throws IOException {
+        if (arena != null) {
+            arena.close();
+        }
         channel.close();
     }
 
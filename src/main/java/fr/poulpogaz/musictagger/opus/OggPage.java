@@ -2,6 +2,7 @@ package fr.poulpogaz.musictagger.opus;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -27,7 +28,10 @@ public class OggPage {
     int headerSize;
     int packetSize;
 
+    // payload is either a view of dataBuffer or a view of the buffer the page was read from
+    private ByteBuffer payload;
     private byte[] data;
+    private ByteBuffer dataBuffer;
 
     public OggPage() {
 
@@ -75,18 +79,39 @@ public class OggPage {
      * is copied into "data" array. Finally, buffer position will be set just after the page.
      */
     public void finishReadPage(ByteBuffer buffer) throws IOException {
-        buffer.putInt(buffer.position() + 22, 0);
-        int crc = CRC32.getCRC(buffer, buffer.position(), getPageSize());
-        buffer.putInt(buffer.position() + 22, getCRC());
+        finishReadPage(buffer, true);
+    }
 
-        if (crc != getCRC()) {
-            throwError("CRC verification failed. (expected: " + getCRC() + ", got: " + crc + ")");
+    /**
+     * Same as {@link #finishReadPage(ByteBuffer)} but if copy is false, the page
+     * content isn't copied: {@link #getPayload()} will return a view of the buffer.
+     * The buffer isn't modified.
+     */
+    public void finishReadPage(ByteBuffer buffer, boolean copy) throws IOException {
+        finishReadPage(buffer, copy, true);
+    }
+
+    /**
+     * Same as {@link #finishReadPage(ByteBuffer, boolean)} but the CRC is
+     * verified only if verify is true.
+     */
+    public void finishReadPage(ByteBuffer buffer, boolean copy, boolean verify) throws IOException {
+        int pos = buffer.position();
+
+        if (verify) {
+            verifyCRC(buffer, pos);
         }
 
-        buffer.position(buffer.position() + getHeaderSize());
+        buffer.position(pos + getHeaderSize());
 
-        data = growArrayIfNeeded(data, packetSize);
-        buffer.get(data, 0, packetSize);
+        if (copy) {
+            growDataIfNeeded();
+            buffer.get(data, 0, packetSize);
+            payload = dataBuffer.clear().limit(packetSize);
+        } else {
+            payload = buffer.slice(buffer.position(), packetSize).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(buffer.position() + packetSize);
+        }
     }
 
     public void copyHeaderFrom(OggPage other) {
@@ -111,33 +136,50 @@ public class OggPage {
         }
     }
 
-    private byte[] growArrayIfNeeded(byte[] array, int minCapacity) {
-        if (array == null || array.length < minCapacity) {
-            return new byte[minCapacity];
-        } else {
-            return array;
+    /**
+     * Verifies the CRC of the page that starts at index pos in the buffer.
+     * The buffer isn't modified.
+     */
+    void verifyCRC(ByteBuffer buffer, int pos) throws IOException {
+        // the CRC is computed with the CRC field set to zero
+        int crc = CRC32.update(0, buffer, pos, 22);
+        for (int i = 0; i < 4; i++) {
+            crc = CRC32.update(crc, (byte) 0);
+        }
+        crc = CRC32.update(crc, buffer, pos + 26, getPageSize() - 26);
+
+        if (crc != getCRC()) {
+            throwError("CRC verification failed. (expected: " + getCRC() + ", got: " + crc + ")");
+        }
+    }
+
+    private void growDataIfNeeded() {
+        if (data == null || data.length < packetSize) {
+            data = new byte[packetSize];
+            dataBuffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
         }
     }
 
     public void assertBytes(byte[] expected) throws IOException {
-        if (data.length < expected.length) {
+        if (packetSize < expected.length) {
             throwError("Can't find expected bytes at start of OggPage: not enough bytes");
         }
 
         for (int i = 0; i < expected.length; i++) {
-            if (data[i] != expected[i]) {
-                throwError("Invalid byte at position " + i + ". (expected " + expected[i] + ", got: " + data[i] + ")");
+            byte b = payload.get(i);
+            if (b != expected[i]) {
+                throwError("Invalid byte at position " + i + ". (expected " + expected[i] + ", got: " + b + ")");
             }
         }
     }
 
 
     public byte getByte(int pos) throws IOException {
-        if (pos < 0 || pos >= data.length) {
+        if (pos < 0 || pos >= packetSize) {
             throwError("Cannot read byte at position: " + pos);
         }
 
-        return data[pos];
+        return payload.get(pos);
     }
 
     public int getUByte(int pos) throws IOException {
@@ -145,11 +187,11 @@ public class OggPage {
     }
 
     public short getShort(int pos) throws IOException {
-        if (pos < 0 || pos + 1 >= data.length) {
+        if (pos < 0 || pos + 1 >= packetSize) {
             throwError("Cannot read short at position: " + pos);
         }
 
-        return (short) (data[pos] | data[pos + 1] << 8);
+        return payload.getShort(pos);
     }
 
     public int getUShort(int pos) throws IOException {
@@ -157,11 +199,11 @@ public class OggPage {
     }
 
     public int getInt(int pos) throws IOException {
-        if (pos < 0 || pos + 3 >= data.length) {
+        if (pos < 0 || pos + 3 >= packetSize) {
             throwError("Cannot read int at position: " + pos);
         }
 
-        return data[pos] | data[pos + 1] << 8 | data[pos + 2] << 16 | data[pos + 3] << 24;
+        return payload.getInt(pos);
     }
 
     public long getUInt(int pos) throws IOException {
@@ -221,10 +263,31 @@ public class OggPage {
         return (headerType & 0x4) != 0;
     }
 
+    /**
+     * Returns the content of the page. If the page was read without copying its
+     * content, the content is copied in an array owned by this page.
+     * Only the first {@link #getPacketSize()} bytes of the array are relevant.
+     */
     public byte[] getData() {
+        if (payload != null && payload != dataBuffer) {
+            growDataIfNeeded();
+            payload.get(0, data, 0, packetSize);
+            payload = dataBuffer.clear().limit(packetSize);
+        }
+
         return data;
     }
 
+    /**
+     * Returns the content of the page, in little endian. The buffer is either
+     * backed by an array owned by this page or is a view of the buffer the page
+     * was read from. Its position is zero and its limit is {@link #getPacketSize()}.
+     * Absolute get methods should be used.
+     */
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
     @Override
     public String toString() {
         return "OggPage{size=" + getPageSize()
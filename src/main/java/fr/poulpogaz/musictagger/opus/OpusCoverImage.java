@@ -0,0 +1,286 @@
+package fr.poulpogaz.musictagger.opus;
+
+import fr.poulpogaz.musictagger.utils.ImageUtils;
+import fr.poulpogaz.musictagger.utils.LimitedInputStream;
+import fr.poulpogaz.musictagger.utils.SoftLazyImage;
+import fr.poulpogaz.musictagger.utils.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * A cover art stored in a METADATA_BLOCK_PICTURE comment of an opus file.
+ * The image is read from the file only when needed.
+ * <p>
+ * Covers are identified by a sample of their content, see {@link #identify(LimitedInputStream, MetadataPicture)}.
+ * The first cover with an identity owns it. Another cover with the same identity
+ * is compared to the owner with a hash of their full content the first time its image is
+ * loaded, and gets a longer identity if they differ. Until then, it has no identity.
+ */
+public class OpusCoverImage extends SoftLazyImage {
+
+    private static final Logger LOGGER = LogManager.getLogger(OpusCoverImage.class);
+
+    // number of bytes at the start and at the end of a comment value used by identify
+    private static final int SAMPLE_SIZE = 4096;
+
+    // covers by identity, see claim
+    private static final ConcurrentHashMap<String, WeakReference<OpusCoverImage>> OWNERS = new ConcurrentHashMap<>();
+
+    /**
+     * Reads the header of a picture stored in a METADATA_BLOCK_PICTURE comment and
+     * computes an identity for it, used as the cache key of the image.
+     * The image is neither decoded nor fully read: the identity is made of the
+     * length of the comment value and of the CRC of its first and last {@link #SAMPLE_SIZE}
+     * bytes. As it doesn't depend on the position of the comment, identical covers
+     * in different files share the same identity.
+     *
+     * @param value the value of the comment, fully consumed by this method
+     * @param header where the header of the picture is stored
+     * @return the identity of the picture
+     */
+    static String identify(LimitedInputStream value, MetadataPicture header) throws IOException {
+        long encodedLength = value.remainingBytes();
+        header.fromInputStream(Base64.getDecoder().wrap(value), false);
+
+        CRC32C crc = new CRC32C();
+        crc.update(value.readNBytes(SAMPLE_SIZE));
+        long first = crc.getValue();
+
+        value.skipNBytes(Math.max(value.remainingBytes() - SAMPLE_SIZE, 0));
+        crc.reset();
+        crc.update(value.readNBytes(SAMPLE_SIZE));
+        long last = crc.getValue();
+
+        return Long.toHexString(encodedLength) + '-' + Long.toHexString(first << 32 | last);
+    }
+
+    private final String sampleHash; // computed by identify
+    private volatile boolean confirmed; // true once hash is known to identify the content
+    private volatile byte[] contentHash; // computed when needed
+
+    private volatile Location location;
+
+    /**
+     * @param hash hash of the image, computed by {@link #identify(LimitedInputStream, MetadataPicture)}
+     * @param file the opus file
+     * @param pagePosition position of the first byte of the page where the comment value starts
+     * @param dataOffset position of the first byte of the comment value in the page's data
+     * @param encodedLength length of the comment value, in bytes
+     */
+    public OpusCoverImage(String hash, Path file, long pagePosition, long dataOffset, long encodedLength) {
+        super(hash);
+        this.sampleHash = hash;
+        this.location = new Location(file, pagePosition, dataOffset, encodedLength);
+
+        LOGGER.debug("Creating OpusCoverImage for {} at {} with an offset of {}", file, pagePosition, dataOffset);
+    }
+
+    /**
+     * @return true if this cover owns its identity. Doesn't read the file
+     */
+    private boolean claim() {
+        if (confirmed) {
+            return true;
+        }
+
+        WeakReference<OpusCoverImage> ref = new WeakReference<>(this);
+        WeakReference<OpusCoverImage> owner = OWNERS.compute(sampleHash, (_, old) -> old == null || old.get() == null ? ref : old);
+        if (owner.get() == this) {
+            confirmed = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Compares the content of this cover with the one of the owner of its identity,
+     * and changes its identity if they differ.
+     */
+    private void confirm() throws IOException {
+        while (!claim()) {
+            WeakReference<OpusCoverImage> ref = OWNERS.get(sampleHash);
+            OpusCoverImage owner = ref == null ? null : ref.get();
+            if (owner == null) {
+                continue; // collected meanwhile: claim it
+            }
+
+            byte[] ownerHash;
+            try {
+                ownerHash = owner.getContentHash();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to hash cover art of {}", owner.getFile(), e);
+                ownerHash = null;
+            }
+
+            byte[] hash = getContentHash();
+            if (!Arrays.equals(hash, ownerHash)) {
+                LOGGER.debug("Cover arts of {} and {} have the same identity but differ", getFile(), owner.getFile());
+                this.hash = sampleHash + '-' + Utils.bytesToHex(hash);
+            }
+            confirmed = true;
+        }
+    }
+
+    private byte[] getContentHash() throws IOException {
+        byte[] h = contentHash;
+        if (h == null) {
+            h = readValue(value -> {
+                MessageDigest digest = Utils.sha256Digest();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = value.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, read);
+                }
+                return digest.digest();
+            });
+            contentHash = h;
+        }
+
+        return h;
+    }
+
+    @Override
+    public String getIdentity() {
+        return claim() ? hash : null;
+    }
+
+    @Override
+    public BufferedImage getImageNow() {
+        return claim() ? super.getImageNow() : null;
+    }
+
+    @Override
+    public BufferedImage loadImage() throws IOException {
+        return loadImage(0);
+    }
+
+    @Override
+    protected BufferedImage loadImage(int size) throws IOException {
+        confirm();
+
+        // maybe loaded by a cover with the same content
+        BufferedImage img = super.getImageNow();
+        if (img != null) {
+            return img;
+        }
+
+        return readValue(value -> {
+            InputStream is = Base64.getDecoder().wrap(value);
+            is.skipNBytes(4); // skip type
+            is.skipNBytes(IOUtils.getIntB(is)); // skip mimeLength
+            is.skipNBytes(IOUtils.getIntB(is)); // skip description
+            is.skipNBytes(16); // skip width, height, color depth and color count
+            int length = IOUtils.getIntB(is);
+
+            return ImageUtils.read(new LimitedInputStream(is, length), size);
+        });
+    }
+
+    /**
+     * Copies the comment value, still encoded in base64, to out.
+     */
+    public void transferEncodedTo(OutputStream out) throws IOException {
+        readValue(value -> value.transferTo(out));
+    }
+
+    /**
+     * Reads the header of the picture and copies the image, without decoding it, to out.
+     *
+     * @return the header of the picture
+     */
+    public MetadataPicture transferDataTo(OutputStream out) throws IOException {
+        return readValue(value -> {
+            InputStream is = Base64.getDecoder().wrap(value);
+
+            MetadataPicture picture = new MetadataPicture();
+            picture.fromInputStream(is, false);
+            new LimitedInputStream(is, picture.getDataLength()).transferTo(out);
+
+            return picture;
+        });
+    }
+
+    /**
+     * Reads the header of the picture.
+     */
+    public MetadataPicture readHeader() throws IOException {
+        return readValue(value -> {
+            MetadataPicture picture = new MetadataPicture();
+            picture.fromInputStream(Base64.getDecoder().wrap(value), false);
+
+            return picture;
+        });
+    }
+
+    private <T> T readValue(ValueReader<T> reader) throws IOException {
+        Location loc = location;
+        LOGGER.debug("Reading cover art from {} at {} with an offset of {}", loc.file(), loc.pagePosition(), loc.dataOffset());
+
+        try (FileChannel channel = FileChannel.open(loc.file(), StandardOpenOption.READ)) {
+            channel.position(loc.pagePosition());
+
+            try (OggInputStream ois = OggInputStream.map(channel)) {
+                PacketInputStream pis = new PacketInputStream(ois);
+                pis.skipNBytes(loc.dataOffset());
+
+                return reader.read(new LimitedInputStream(pis, loc.encodedLength()));
+            }
+        }
+    }
+
+    /**
+     * Changes where the comment is stored. Called after the opus file was saved,
+     * as comments may have moved.
+     */
+    void relocate(Path file, long pagePosition, long dataOffset, long encodedLength) {
+        LOGGER.debug("Relocating OpusCoverImage to {} at {} with an offset of {}", file, pagePosition, dataOffset);
+        location = new Location(file, pagePosition, dataOffset, encodedLength);
+    }
+
+    /**
+     * @return the hash computed by {@link #identify(LimitedInputStream, MetadataPicture)}
+     */
+    public String getHash() {
+        return sampleHash;
+    }
+
+    public Path getFile() {
+        return location.file();
+    }
+
+    public long getPagePosition() {
+        return location.pagePosition();
+    }
+
+    public long getDataOffset() {
+        return location.dataOffset();
+    }
+
+    public long getEncodedLength() {
+        return location.encodedLength();
+    }
+
+    private interface ValueReader<T> {
+
+        T read(InputStream value) throws IOException;
+    }
+
+    private record Location(Path file, long pagePosition, long dataOffset, long encodedLength) {
+
+    }
+}
@@ -3,8 +3,6 @@ package fr.poulpogaz.musictagger.opus;
 import fr.poulpogaz.musictagger.model.CoverArt;
 import fr.poulpogaz.musictagger.utils.ArrayListValuedLinkedMap;
 import fr.poulpogaz.musictagger.utils.LimitedInputStream;
-import fr.poulpogaz.musictagger.utils.SoftLazyImage;
-import fr.poulpogaz.musictagger.utils.Utils;
 import org.apache.commons.collections4.ListValuedMap;
 import org.apache.commons.collections4.MapIterator;
 import org.apache.commons.collections4.MultiValuedMap;
@@ -12,14 +10,10 @@ import org.apache.commons.collections4.multimap.UnmodifiableMultiValuedMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 public class OpusFile {
@@ -93,6 +87,8 @@ public class OpusFile {
 
     private static final Logger LOGGER = LogManager.getLogger(OpusFile.class);
 
+    private static final String DEFAULT_VENDOR = "musicTagger";
+
     private Path file;
     private long fileSize;
 
@@ -119,7 +115,9 @@ public class OpusFile {
         MetadataPicture pic = new MetadataPicture();
 
         fileSize = Files.size(file);
-        try (OpusInputStream ois = new OpusInputStream(file)) {
+        try (OpusInputStream ois = new OpusInputStream(OggInputStream.map(file))) {
+            // only the granule position of audio pages is used, to compute the length
+            ois.setVerificationPolicy(VerificationPolicy.HEADERS);
             channels = ois.readOpusHead().getChannels();
             vendor = ois.readVendor();
 
@@ -132,15 +130,19 @@ public class OpusFile {
                     long position = ois.currentPagePosition();
                     int offset = ois.positionInPage();
 
-                    InputStream picIS = Base64.getDecoder().wrap(ois.valueInputStream());
-                    pic.fromInputStream(picIS, false);
+                    LimitedInputStream value = ois.valueInputStream();
+                    long encodedLength = value.remainingBytes();
 
-                    String sha256 = Utils.sha256(picIS, pic.getDataLength());
-                    picIS.close();
-                    CoverArt cover = new CoverArt(createSoftLazyImage(sha256, file, position, offset));
+                    String identity = OpusCoverImage.identify(value, pic);
+                    value.close();
+                    CoverArt cover = new CoverArt(new OpusCoverImage(identity, file, position, offset, encodedLength));
                     cover.setType(pic.getType());
                     cover.setDescription(pic.getDescription());
                     cover.setMimeType(pic.getMimeType());
+                    cover.setWidth(pic.getWidth());
+                    cover.setHeight(pic.getHeight());
+                    cover.setColorDepth(pic.getColorDepth());
+                    cover.setColorCount(pic.getColorCount());
                     addCoverArt(cover);
                 } else {
                     put(key, ois.readValue());
@@ -155,31 +157,36 @@ public class OpusFile {
         }
     }
 
-    private SoftLazyImage createSoftLazyImage(String sha256, Path file, long pagePosition, long dataOffset) {
-        LOGGER.debug("Creating SoftLazyImage for {} at {} with an offset of {}", file, pagePosition, dataOffset);
-
-        return new SoftLazyImage(sha256) {
-            @Override
-            public BufferedImage loadImage() throws IOException {
-                LOGGER.debug("Loading cover art from {} at {} with an offset of {}", file, pagePosition, dataOffset);
-                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
-                    channel.position(pagePosition);
+    /**
+     * Restores the state of this file from an entry of the {@link OpusFileIndex}.
+     * The file isn't read.
+     */
+    void load(Path file, OpusFileIndex.Entry entry) {
+        this.file = file;
+        clear();
+        clearCoverArt();
 
-                    OggInputStream ois = new OggInputStream(channel);
-                    PacketInputStream pis = new PacketInputStream(ois);
-                    pis.skipNBytes(dataOffset);
+        fileSize = entry.size();
+        vendor = entry.vendor();
+        channels = entry.channels();
+        length = entry.length();
 
-                    InputStream is = Base64.getDecoder().wrap(pis);
-                    is.skipNBytes(4); // skip type
-                    is.skipNBytes(IOUtils.getIntB(is)); // skip mimeLength
-                    is.skipNBytes(IOUtils.getIntB(is)); // skip description
-                    is.skipNBytes(16); // skip width, height, color depth and color count
-                    int length = IOUtils.getIntB(is);
+        for (int i = 0; i < entry.comments().size(); i += 2) {
+            put(entry.comments().get(i), entry.comments().get(i + 1));
+        }
 
-                    return ImageIO.read(new LimitedInputStream(is, length));
-                }
-            }
-        };
+        for (OpusFileIndex.Cover c : entry.covers()) {
+            CoverArt cover = new CoverArt(new OpusCoverImage(c.hash(), file, c.pagePosition(), c.dataOffset(),
+                                                                   c.encodedLength()));
+            cover.setType(c.type());
+            cover.setDescription(c.description());
+            cover.setMimeType(c.mimeType());
+            cover.setWidth(c.width());
+            cover.setHeight(c.height());
+            cover.setColorDepth(c.colorDepth());
+            cover.setColorCount(c.colorCount());
+            addCoverArt(cover);
+        }
     }
 
     public void save() throws IOException, InterruptedException {
@@ -187,12 +194,25 @@ public class OpusFile {
     }
 
     public void save(Path file) throws IOException, InterruptedException {
+        save(file, SaveStrategy.IN_PLACE);
+    }
+
+    public void save(Path file, SaveStrategy strategy) throws IOException, InterruptedException {
+        save(prepareSave(file), strategy);
+    }
+
+    /**
+     * Creates the writer that will save this file to the given path. Cover arts
+     * that aren't stored in an opus file are encoded: it is the CPU intensive part
+     * of a save.
+     *
+     * @see #needsEncoding()
+     */
+    public OpusMetadataWriter prepareSave(Path file) throws IOException, InterruptedException {
         Objects.requireNonNull(file);
-        this.file = file;
 
-        LOGGER.debug("Saving {}", file);
         OpusMetadataWriter omw = new OpusMetadataWriter(file);
-        omw.setVendor(Objects.requireNonNullElse(vendor, "musicTagger"));
+        omw.setVendor(Objects.requireNonNullElse(vendor, DEFAULT_VENDOR));
 
         MapIterator<String, String> it = metadata.mapIterator();
         while (it.hasNext()) {
@@ -201,11 +221,100 @@ public class OpusFile {
         }
 
         for (CoverArt coverArt : covers) {
-            BufferedImage img = coverArt.getImage();
-            omw.addCoverArt(img, coverArt.getDescription(), coverArt.getType());
+            if (coverArt.getLazyImage() instanceof OpusCoverImage opusImage) {
+                // unchanged cover: copy it from the file, without decoding it
+                omw.addCoverArt(opusImage, coverArt.getDescription(), coverArt.getType());
+            } else {
+                BufferedImage img = coverArt.getImage();
+                omw.addCoverArt(img, coverArt.getDescription(), coverArt.getType());
+            }
+        }
+
+        return omw;
+    }
+
+    /**
+     * Writes comments prepared by {@link #prepareSave(Path)}.
+     */
+    public void save(OpusMetadataWriter omw, SaveStrategy strategy) throws IOException {
+        Objects.requireNonNull(strategy);
+        this.file = omw.getPath();
+
+        LOGGER.debug("Saving {}", file);
+        omw.write(strategy);
+
+        for (CoverArt coverArt : covers) {
+            if (coverArt.getLazyImage() instanceof OpusCoverImage) {
+                relocateCoverArts();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes comments prepared by {@link #prepareSave(Path)} to a file that was just
+     * created, like a file downloaded by yt-dlp, and replaces the cover arts of this
+     * file by those added to the writer. Unlike {@link #load(Path)}, comments aren't
+     * read back from the file: only its header and its last page are read.
+     */
+    public void saveNew(OpusMetadataWriter omw) throws IOException {
+        save(omw, SaveStrategy.IN_PLACE);
+
+        clearCoverArt();
+        for (CoverArt cover : omw.getWrittenCoverArts()) {
+            addCoverArt(cover);
+        }
+
+        vendor = Objects.requireNonNullElse(vendor, DEFAULT_VENDOR);
+        fileSize = Files.size(file);
+        try (OpusInputStream ois = new OpusInputStream(OggInputStream.map(file))) {
+            ois.setVerificationPolicy(VerificationPolicy.HEADERS);
+            channels = ois.readOpusHead().getChannels();
+            length = ois.fileLength();
+        }
+    }
+
+    /**
+     * @return true if a cover art will be encoded by {@link #prepareSave(Path)}
+     */
+    public boolean needsEncoding() {
+        for (CoverArt coverArt : covers) {
+            if (!(coverArt.getLazyImage() instanceof OpusCoverImage)) {
+                return true;
+            }
         }
 
-        omw.write();
+        return false;
+    }
+
+    /**
+     * Comments may have moved after a save: updates the position of
+     * {@link OpusCoverImage}s so that they can still be loaded.
+     */
+    private void relocateCoverArts() throws IOException {
+        try (OpusInputStream ois = new OpusInputStream(OggInputStream.map(file))) {
+            ois.setVerificationPolicy(VerificationPolicy.HEADERS);
+            ois.readOpusHead();
+            ois.skipVendor();
+
+            long n = ois.readCommentCount();
+            int coverIndex = 0;
+            for (long i = 0; i < n && coverIndex < covers.size(); i++) {
+                String key = ois.readKey();
+                long position = ois.currentPagePosition();
+                int offset = ois.positionInPage();
+                LimitedInputStream value = ois.valueInputStream();
+
+                if (key.equals("METADATA_BLOCK_PICTURE")) {
+                    if (covers.get(coverIndex).getLazyImage() instanceof OpusCoverImage opusImage) {
+                        opusImage.relocate(file, position, offset, value.remainingBytes());
+                    }
+                    coverIndex++;
+                }
+
+                value.close(); // skip value
+            }
+        }
     }
 
     public Path getPath() {
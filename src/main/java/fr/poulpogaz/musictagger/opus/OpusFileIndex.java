@@ -0,0 +1,416 @@
+package fr.poulpogaz.musictagger.opus;
+
+import fr.poulpogaz.musictagger.model.CoverArt;
+import fr.poulpogaz.musictagger.utils.Directories;
+import fr.poulpogaz.musictagger.utils.LazyImage;
+import org.apache.commons.collections4.MapIterator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent index of opus files, keyed by path, size and last modification time.
+ * It stores everything {@link OpusFile#load(Path)} reads, so unchanged files can
+ * be loaded without being opened. Cover arts are stored as descriptors: the image is
+ * still read from the opus file when needed.
+ * The index also maps the URL of downloaded files, found in their PURL
+ * comment, to their path, so files that were already downloaded are found
+ * without downloading them again.
+ * This class is thread safe.
+ */
+public class OpusFileIndex {
+
+    private static final Logger LOGGER = LogManager.getLogger(OpusFileIndex.class);
+
+    private static final int MAGIC = 0x4F504958; // OPIX
+    private static final int VERSION = 5;
+
+    private static OpusFileIndex instance;
+
+    /**
+     * @return the index stored in the configuration directory
+     */
+    public static synchronized OpusFileIndex getInstance() {
+        if (instance == null) {
+            instance = new OpusFileIndex(Directories.getConfigurationDirectory().resolve("index.bin"));
+            instance.read();
+        }
+
+        return instance;
+    }
+
+
+
+    private final Path path;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, String> urls = new ConcurrentHashMap<>(); // normalized PURL -> key in entries
+    private volatile boolean modified;
+
+    public OpusFileIndex(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Loads the opus file from the index if the file wasn't modified since it was indexed.
+     * Otherwise, the file is parsed and the index updated. If the file was deleted,
+     * it is removed from the index.
+     */
+    public OpusFile load(Path file) throws IOException {
+        String key = file.toAbsolutePath().normalize().toString();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            removeIfDeleted(key);
+            throw e;
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        OpusFile opus = new OpusFile();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.size() == size && entry.lastModified() == lastModified) {
+            opus.load(file, entry);
+            return opus;
+        }
+
+        opus.load(file);
+        put(key, opus, size, lastModified);
+
+        return opus;
+    }
+
+    /**
+     * Adds a file to the index without parsing it, for example a file that was
+     * just written by {@link OpusFile#saveNew(OpusMetadataWriter)}.
+     */
+    public void put(OpusFile opus) throws IOException {
+        Path file = opus.getPath();
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+        put(file.toAbsolutePath().normalize().toString(), opus,
+            attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    private void put(String key, OpusFile opus, long size, long lastModified) {
+        Entry entry = createEntry(opus, size, lastModified);
+        if (entry != null) {
+            entries.put(key, entry);
+            indexURL(key, entry);
+            modified = true;
+        }
+    }
+
+    /**
+     * Finds a file whose PURL comment is the given URL. The file is checked before
+     * being returned, so the result is never a file that was deleted or whose PURL changed.
+     *
+     * @return the file downloaded from url or null
+     */
+    public OpusFile findByURL(String url) {
+        String normalizedURL = normalizeURL(url);
+        String key = normalizedURL == null ? null : urls.get(normalizedURL);
+        if (key == null) {
+            return null;
+        }
+
+        Path file = Path.of(key);
+        try {
+            OpusFile opus = load(file);
+
+            if (normalizedURL.equals(normalizeURL(opus.getFirst("PURL")))) {
+                return opus;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Failed to load {}", file, e);
+        }
+
+        urls.remove(normalizedURL, key);
+        return null;
+    }
+
+    /**
+     * Removes the entry of a file that wasn't found. It is kept if its directory
+     * doesn't exist either: the drive may only be unmounted.
+     */
+    private void removeIfDeleted(String key) {
+        Path file = Path.of(key);
+        Path parent = file.getParent();
+        if (parent != null && Files.isDirectory(parent) && entries.remove(key) != null) {
+            LOGGER.debug("{} was deleted, removing it from index", file);
+            urls.values().remove(key);
+            modified = true;
+        }
+    }
+
+    public void remove(Path file) {
+        String key = file.toAbsolutePath().normalize().toString();
+        if (entries.remove(key) != null) {
+            urls.values().remove(key);
+            modified = true;
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        urls.clear();
+        modified = true;
+    }
+
+    private void indexURL(String key, Entry entry) {
+        List<String> comments = entry.comments();
+        for (int i = 0; i < comments.size(); i += 2) {
+            if (comments.get(i).equals("PURL")) {
+                String url = normalizeURL(comments.get(i + 1));
+                if (url != null) {
+                    urls.put(url, key);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the parts of an URL that don't change the resource it points
+     * to: the scheme, "www." and the fragment.
+     *
+     * @return the normalized URL or null if url is null or blank
+     */
+    static String normalizeURL(String url) {
+        if (url == null || url.isBlank()) {
+            return null;
+        }
+
+        url = url.strip();
+        int fragment = url.indexOf('#');
+        if (fragment >= 0) {
+            url = url.substring(0, fragment);
+        }
+
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        if (url.startsWith("www.", start)) {
+            start += 4;
+        }
+
+        int end = url.indexOf('/', start);
+        if (end < 0) {
+            end = url.length();
+        }
+
+        // host is case-insensitive
+        return url.substring(start, end).toLowerCase(Locale.ROOT) + url.substring(end);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private Entry createEntry(OpusFile file, long size, long lastModified) {
+        List<String> comments = new ArrayList<>();
+        MapIterator<String, String> it = file.getMetadata().mapIterator();
+        while (it.hasNext()) {
+            it.next();
+            comments.add(it.getKey());
+            comments.add(it.getValue());
+        }
+
+        List<Cover> covers = new ArrayList<>();
+        for (CoverArt cover : file.getCoverArts()) {
+            LazyImage image = cover.getLazyImage();
+            if (!(image instanceof OpusCoverImage opusImage)) {
+                return null;
+            }
+
+            covers.add(new Cover(opusImage.getHash(), opusImage.getPagePosition(), opusImage.getDataOffset(),
+                                 opusImage.getEncodedLength(),
+                                 cover.getType(), cover.getMimeType(), cover.getDescription(),
+                                 cover.getWidth(), cover.getHeight(), cover.getColorDepth(), cover.getColorCount()));
+        }
+
+        return new Entry(size, lastModified, file.getVendor(), file.getChannels(), file.getLength(),
+                         comments, covers);
+    }
+
+
+
+    private void read() {
+        if (Files.notExists(path)) {
+            return;
+        }
+
+        LOGGER.debug("Reading opus file index {}", path);
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                LOGGER.info("Ignoring opus file index {}: unknown format", path);
+                return;
+            }
+
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = readString(dis);
+                Entry entry = readEntry(dis);
+                entries.put(key, entry);
+                indexURL(key, entry);
+            }
+
+            LOGGER.debug("{} files in index", entries.size());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to read opus file index {}", path, e);
+            entries.clear();
+            urls.clear();
+        }
+    }
+
+    private Entry readEntry(DataInputStream dis) throws IOException {
+        long size = dis.readLong();
+        long lastModified = dis.readLong();
+        String vendor = readString(dis);
+        Channels channels = readEnum(dis, Channels.values());
+        double length = dis.readDouble();
+
+        int commentCount = dis.readInt();
+        List<String> comments = new ArrayList<>(2 * commentCount);
+        for (int i = 0; i < commentCount; i++) {
+            comments.add(readString(dis));
+            comments.add(readString(dis));
+        }
+
+        int coverCount = dis.readInt();
+        List<Cover> covers = new ArrayList<>(coverCount);
+        for (int i = 0; i < coverCount; i++) {
+            covers.add(new Cover(readString(dis), dis.readLong(), dis.readLong(), dis.readLong(),
+                                 readEnum(dis, CoverType.values()), readString(dis), readString(dis),
+                                 dis.readInt(), dis.readInt(), dis.readInt(), dis.readInt()));
+        }
+
+        return new Entry(size, lastModified, vendor, channels, length, comments, covers);
+    }
+
+    /**
+     * Writes the index to the disk if it was modified.
+     */
+    public synchronized void write() throws IOException {
+        if (!modified) {
+            return;
+        }
+        modified = false;
+
+        LOGGER.debug("Writing opus file index {}", path);
+        Files.createDirectories(path.getParent());
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> e : snapshot) {
+                    writeString(dos, e.getKey());
+                    writeEntry(dos, e.getValue());
+                }
+            }
+
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            modified = true;
+            throw e;
+        }
+    }
+
+    private void writeEntry(DataOutputStream dos, Entry entry) throws IOException {
+        dos.writeLong(entry.size());
+        dos.writeLong(entry.lastModified());
+        writeString(dos, entry.vendor());
+        writeEnum(dos, entry.channels());
+        dos.writeDouble(entry.length());
+
+        dos.writeInt(entry.comments().size() / 2);
+        for (String str : entry.comments()) {
+            writeString(dos, str);
+        }
+
+        dos.writeInt(entry.covers().size());
+        for (Cover c : entry.covers()) {
+            writeString(dos, c.hash());
+            dos.writeLong(c.pagePosition());
+            dos.writeLong(c.dataOffset());
+            dos.writeLong(c.encodedLength());
+            writeEnum(dos, c.type());
+            writeString(dos, c.mimeType());
+            writeString(dos, c.description());
+            dos.writeInt(c.width());
+            dos.writeInt(c.height());
+            dos.writeInt(c.colorDepth());
+            dos.writeInt(c.colorCount());
+        }
+    }
+
+    // DataOutputStream#writeUTF is limited to 65535 bytes
+    private static void writeString(DataOutputStream dos, String str) throws IOException {
+        if (str == null) {
+            dos.writeInt(-1);
+        } else {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeEnum(DataOutputStream dos, Enum<?> e) throws IOException {
+        dos.writeInt(e == null ? -1 : e.ordinal());
+    }
+
+    private static <E extends Enum<E>> E readEnum(DataInputStream dis, E[] values) throws IOException {
+        int ordinal = dis.readInt();
+        if (ordinal < 0) {
+            return null;
+        } else if (ordinal >= values.length) {
+            throw new IOException("Invalid ordinal: " + ordinal);
+        }
+
+        return values[ordinal];
+    }
+
+
+    /**
+     * @param comments keys and values of the comments: comments[2i] is the key
+     *                 of the i-th comment and comments[2i + 1] its value
+     */
+    record Entry(long size, long lastModified,
+                 String vendor, Channels channels, double length,
+                 List<String> comments, List<Cover> covers) {
+
+    }
+
+    record Cover(String hash, long pagePosition, long dataOffset, long encodedLength,
+                 CoverType type, String mimeType, String description,
+                 int width, int height, int colorDepth, int colorCount) {
+
+    }
+}
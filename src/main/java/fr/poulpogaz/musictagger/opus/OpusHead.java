@@ -47,7 +47,7 @@ public class OpusHead {
             twoChannelStreamCount = page.getUByte(20);
             channelMapping = new byte[channelCount];
             assertEndOfPage(page, 20 + channelCount);
-            System.arraycopy(page.getData(), 21, channelMapping, 0, channelCount);
+            page.getPayload().get(21, channelMapping, 0, channelCount);
         } else {
             assertEndOfPage(page, 19);
         }
@@ -242,6 +242,17 @@ public class OpusInputStream implements Closeable {
         return oggis.currentPagePosition();
     }
 
+    /**
+     * @see OggInputStream#setVerificationPolicy(VerificationPolicy)
+     */
+    public void setVerificationPolicy(VerificationPolicy policy) {
+        oggis.setVerificationPolicy(policy);
+    }
+
+    public VerificationPolicy getVerificationPolicy() {
+        return oggis.getVerificationPolicy();
+    }
+
     public int positionInPage() {
         if (state == State.READ_OPUS_HEAD || state == State.READ_OGG_PAGE) {
             throw new IllegalStateException();
@@ -1,23 +1,32 @@
 package fr.poulpogaz.musictagger.opus;
 
+import fr.poulpogaz.musictagger.model.CoverArt;
+import fr.poulpogaz.musictagger.utils.LimitedInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
 import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.Base64;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.*;
 
 public class OpusMetadataWriter {
 
@@ -30,6 +39,14 @@ public class OpusMetadataWriter {
     private static final int WIGGLE_ROOM = 2048;
     private static final int STANDARD_PAGE_SIZE = OggPage.MIN_HEADER_SIZE + PAGE_DATA_SIZE / 255 + PAGE_DATA_SIZE;
 
+    // bounds of the padding added after the comments
+    // when writing in place, the padding can't be greater than MAX_PADDING
+    private static final int MIN_PADDING = 1024;
+    private static final int MAX_PADDING = 10 * MIN_PADDING;
+
+    // used when audio pages are copied to a temporary file
+    private static final int COPY_BUFFER_SIZE = 1 << 20;
+
     private final Path path;
 
     private final CommentBytes commentBytes = new CommentBytes();
@@ -37,6 +54,11 @@ public class OpusMetadataWriter {
     private int commentCountPosition;
     private int commentCount = 0;
 
+    // where the values of the METADATA_BLOCK_PICTURE comments are in commentBytes
+    private final List<PictureValue> pictures = new ArrayList<>();
+    // pages written by the last call to write
+    private final List<WrittenPage> writtenPages = new ArrayList<>();
+
     public OpusMetadataWriter(Path path) {
         this.path = path;
 
@@ -77,6 +99,78 @@ public class OpusMetadataWriter {
     }
 
     public void addCoverArt(BufferedImage image, String description, CoverType type) throws IOException {
+        ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", imageBytes);
+
+        int colorCount = image.getColorModel() instanceof IndexColorModel model ? model.getMapSize() : 0;
+        addPicture(type, "image/png", description,
+                   image.getWidth(), image.getHeight(), image.getColorModel().getPixelSize(), colorCount,
+                   imageBytes);
+    }
+
+    /**
+     * Adds an image file as a cover art. The image isn't decoded:
+     * its bytes are copied and only its header is read.
+     */
+    public void addCoverArt(Path image, String description, CoverType type) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Files.copy(image, data);
+
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data.toByteArray()))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + image);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+
+                ImageTypeSpecifier rawType = reader.getRawImageType(0);
+                ColorModel model = rawType == null ? null : rawType.getColorModel();
+                int colorDepth = model == null ? 24 : model.getPixelSize();
+                int colorCount = model instanceof IndexColorModel m ? m.getMapSize() : 0;
+
+                addPicture(type, "image/" + reader.getFormatName().toLowerCase(Locale.ROOT), description,
+                           reader.getWidth(0), reader.getHeight(0), colorDepth, colorCount,
+                           data);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Adds a cover art which is already stored in an opus file. The image is never decoded:
+     * if the type and the description didn't change, the base64 value is copied as is.
+     * Otherwise, the header of the picture is rewritten and the image bytes are copied.
+     */
+    public void addCoverArt(OpusCoverImage source, String description, CoverType type) throws IOException {
+        type = Objects.requireNonNullElse(type, CoverType.COVER_FRONT);
+        description = Objects.requireNonNullElse(description, "");
+
+        MetadataPicture header = source.readHeader();
+        if (header.getType() == type && description.equals(header.getDescription())) {
+            LOGGER.debug("Copying cover art from {}", source.getFile());
+            commentCount++;
+            writePictureKey(source.getEncodedLength());
+            int offset = commentBytes.getCount();
+            source.transferEncodedTo(commentBytes);
+            pictures.add(new PictureValue(offset, commentBytes.getCount() - offset));
+        } else {
+            LOGGER.debug("Copying cover art from {} with a new header", source.getFile());
+            ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+            MetadataPicture pic = source.transferDataTo(imageBytes);
+
+            addPicture(type, pic.getMimeType(), description,
+                       pic.getWidth(), pic.getHeight(), pic.getColorDepth(), pic.getColorCount(),
+                       imageBytes);
+        }
+    }
+
+    private void addPicture(CoverType type, String mimeType, String description,
+                            int width, int height, int colorDepth, int colorCount,
+                            ByteArrayOutputStream data) throws IOException {
         commentCount++;
 
         // value
@@ -85,93 +179,242 @@ public class OpusMetadataWriter {
 
         // write metadata picture header
         IOUtils.writeIntB(base64, type == null ? CoverType.COVER_FRONT.ordinal() : type.ordinal());
-        IOUtils.writeStringWithLength(base64, "image/png");
+        IOUtils.writeStringWithLength(base64, mimeType);
         if (description != null) {
             IOUtils.writeStringWithLength(base64, description);
         } else {
             IOUtils.writeIntB(base64, 0);
         }
-        IOUtils.writeIntB(base64, image.getWidth());
-        IOUtils.writeIntB(base64, image.getHeight());
-        IOUtils.writeIntB(base64, image.getColorModel().getPixelSize());
-        if (image.getColorModel() instanceof IndexColorModel model) {
-            IOUtils.writeIntB(base64, model.getMapSize());
-        } else {
-            IOUtils.writeIntB(base64, 0);
-        }
+        IOUtils.writeIntB(base64, width);
+        IOUtils.writeIntB(base64, height);
+        IOUtils.writeIntB(base64, colorDepth);
+        IOUtils.writeIntB(base64, colorCount);
 
         // write image
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(image, "png", baos);
-
-        IOUtils.writeIntB(base64, baos.size());
-        baos.writeTo(base64);
+        IOUtils.writeIntB(base64, data.size());
+        data.writeTo(base64);
         base64.close();
 
 
         // write comment
+        writePictureKey(imageBytes.size());
+        pictures.add(new PictureValue(commentBytes.getCount(), imageBytes.size()));
+        imageBytes.writeTo(commentBytes);
+    }
+
+    private void writePictureKey(long valueLength) throws IOException {
         byte[] keyBytes = "METADATA_BLOCK_PICTURE".getBytes(StandardCharsets.UTF_8);
 
-        IOUtils.writeIntL(commentBytes, keyBytes.length + 1 + imageBytes.size());
+        IOUtils.writeIntL(commentBytes, Math.toIntExact(keyBytes.length + 1 + valueLength));
         commentBytes.writeBytes(keyBytes);
         commentBytes.write('=');
-        imageBytes.writeTo(commentBytes);
+    }
+
+    public Path getPath() {
+        return path;
     }
 
     public void write() throws IOException {
+        write(SaveStrategy.IN_PLACE);
+    }
+
+    public void write(SaveStrategy strategy) throws IOException {
         commentBytes.writeIntAt(commentCountPosition, commentCount);
+        writtenPages.clear();
 
+        switch (strategy) {
+            case IN_PLACE -> writeInPlace();
+            case TEMP_FILE -> writeToTempFile();
+        }
+    }
+
+    /**
+     * Creates the cover arts written by the last call to {@link #write(SaveStrategy)},
+     * located where they are stored in the file. The file isn't read: the headers
+     * of the pictures are read from memory and the images aren't decoded.
+     */
+    public List<CoverArt> getWrittenCoverArts() throws IOException {
+        if (writtenPages.isEmpty()) {
+            throw new IllegalStateException("Comments not written");
+        }
+
+        List<CoverArt> covers = new ArrayList<>(pictures.size());
+        MetadataPicture pic = new MetadataPicture();
+        for (PictureValue value : pictures) {
+            // the last page starting before the value
+            WrittenPage page = writtenPages.getFirst();
+            for (WrittenPage p : writtenPages) {
+                if (p.dataStart() > value.offset()) {
+                    break;
+                }
+                page = p;
+            }
+
+            ByteArrayInputStream bytes = new ByteArrayInputStream(commentBytes.getBuffer(), value.offset(), value.length());
+            String identity = OpusCoverImage.identify(new LimitedInputStream(bytes, value.length()), pic);
+
+            CoverArt cover = new CoverArt(new OpusCoverImage(identity, path, page.position(),
+                                                             value.offset() - page.dataStart(), value.length()));
+            cover.setType(pic.getType());
+            cover.setDescription(pic.getDescription());
+            cover.setMimeType(pic.getMimeType());
+            cover.setWidth(pic.getWidth());
+            cover.setHeight(pic.getHeight());
+            cover.setColorDepth(pic.getColorDepth());
+            cover.setColorCount(pic.getColorCount());
+            covers.add(cover);
+        }
+
+        return covers;
+    }
+
+    private void writeInPlace() throws IOException {
         LOGGER.debug("Overwriting comments in {}", path);
         try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
             OggInputStream ois = new OggInputStream(fc);
-            OpusInputStream opus = new OpusInputStream(ois);
-
-            OpusHead head = opus.readOpusHead();
-            OggPage headPage = head.getPage();
-            int headSeqNumber = headPage.getPageSequenceNumber();
-            int bitstreamSerialNumber = headPage.getBitstreamSerialNumber();
-            int commentPos = headPage.getPageSize();
-
-            LOGGER.debug("Comment found at {}, head sequence number {}, serial number {}",
-                         commentPos, headSeqNumber, bitstreamSerialNumber);
-
-            // compute size of current comment size
-            // opus tag; vendor length; vendor; comment count
-            long commentSize = 8 + 4 + opus.readVendorLength() + 4;
-            opus.skipVendor();
-
-            long n = opus.readCommentCount();
-            for (int i = 0; i < n; i++) {
-                // comment length ; comment
-                commentSize += 4 + opus.readCommentLength();
-                opus.skipComment();
-            }
-
-            LOGGER.debug("Comment size: {}, new comment size: {}", commentSize, commentBytes.getCount());
+            CurrentComments current = readCurrentComments(ois);
 
-            long padding = hasPadding(opus);
-            if (padding >= 0) {
-                addPadding(commentSize, padding);
-            } else {
-                LOGGER.debug("Preserving padding");
+            if (reuseCommentPages(fc, current.commentPos(), current.encodedLength(), current.padding() >= 0)) {
+                return;
             }
 
-            long currentCommentEncodedLength = ois.currentPagePosition() - headPage.getPageSize();
-            int pageCount = commentBytes.pageCount();
+            int pageCount = prepareComments(current);
             int commentEncodedLength = commentBytes.pageEncodedLength();
 
-            LOGGER.debug("Comment size {} - new {}. Encoded {} - new {}",
-                         commentSize, commentBytes.getCount(), currentCommentEncodedLength, commentEncodedLength);
-
             // resize file if necessary
             // it also numbers pages after opus tag
-            renumberAndResize(fc, ois, currentCommentEncodedLength, commentEncodedLength, ois.nextPage(), headSeqNumber + pageCount + 1);
+            renumberAndResize(fc, ois, current.encodedLength(), commentEncodedLength, ois.nextPage(),
+                              current.headSeqNumber() + pageCount + 1);
 
             // insert opus tag
-            insertComment(fc, ois.buffer, commentPos, bitstreamSerialNumber, headSeqNumber + 1);
+            insertComment(fc, ois.buffer, current.commentPos(), current.bitstreamSerialNumber(),
+                          current.headSeqNumber() + 1);
+        }
+    }
+
+    /**
+     * Writes the OpusHead page, the new comments and the audio pages to a sibling
+     * temporary file, then replaces the file by the temporary file. If anything
+     * fails, the original file is left untouched.
+     */
+    private void writeToTempFile() throws IOException {
+        // a new file, so neither a file of the user nor a leftover of a crash is overwritten
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "." + path.getFileName(), ".tmp");
+        LOGGER.debug("Writing {} to {}", path, tmp);
+
+        try (FileChannel src = FileChannel.open(path, StandardOpenOption.READ);
+             FileChannel dest = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            OggInputStream ois = new OggInputStream(src);
+            CurrentComments current = readCurrentComments(ois);
+            long audioDataPos = ois.currentPagePosition();
+
+            int pageCount = prepareComments(current);
+            int firstAudioSeqNumber = current.headSeqNumber() + pageCount + 1;
+
+            // OpusHead
+            IOUtils.transferFully(src, 0, current.commentPos(), dest, 0);
+
+            // comments
+            ByteBuffer tmpBuffer = ByteBuffer.allocate(OggPage.MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            insertComment(dest, tmpBuffer, current.commentPos(), current.bitstreamSerialNumber(),
+                          current.headSeqNumber() + 1);
+
+            // audio
+            long destPos = dest.position();
+            OggPage firstAudioPage = ois.peekNextPage();
+            if (firstAudioPage == null || firstAudioPage.getPageSequenceNumber() == firstAudioSeqNumber) {
+                LOGGER.debug("Copying audio data from {} to {}", audioDataPos, destPos);
+                IOUtils.transferFully(src, audioDataPos, src.size() - audioDataPos, dest, destPos);
+            } else {
+                LOGGER.debug("Copying and renumbering audio data from {} to {}", audioDataPos, destPos);
+                copyAndRenumber(src, audioDataPos, dest, destPos, firstAudioSeqNumber);
+            }
+
+            dest.force(false);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        // createTempFile gives the temporary file owner-only permissions
+        copyPermissions(path, tmp);
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
         }
     }
 
+    private void copyPermissions(Path from, Path to) {
+        try {
+            PosixFileAttributeView view = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+            if (view != null) {
+                Files.setPosixFilePermissions(to, view.readAttributes().permissions());
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Failed to copy permissions of {}", from, e);
+        }
+    }
+
+    /**
+     * Reads the OpusHead and the current comments. The stream is positioned
+     * at the first audio page. If the padding must be preserved, it is copied
+     * in commentBytes.
+     */
+    private CurrentComments readCurrentComments(OggInputStream ois) throws IOException {
+        OpusInputStream opus = new OpusInputStream(ois);
+
+        OpusHead head = opus.readOpusHead();
+        OggPage headPage = head.getPage();
+        int headSeqNumber = headPage.getPageSequenceNumber();
+        int bitstreamSerialNumber = headPage.getBitstreamSerialNumber();
+        int commentPos = headPage.getPageSize();
+
+        LOGGER.debug("Comment found at {}, head sequence number {}, serial number {}",
+                     commentPos, headSeqNumber, bitstreamSerialNumber);
+
+        // compute size of current comment size
+        // opus tag; vendor length; vendor; comment count
+        long commentSize = 8 + 4 + opus.readVendorLength() + 4;
+        opus.skipVendor();
+
+        long n = opus.readCommentCount();
+        for (int i = 0; i < n; i++) {
+            // comment length ; comment
+            commentSize += 4 + opus.readCommentLength();
+            opus.skipComment();
+        }
+
+        LOGGER.debug("Comment size: {}, new comment size: {}", commentSize, commentBytes.getCount());
+
+        long padding = hasPadding(opus);
+        long encodedLength = ois.currentPagePosition() - headPage.getPageSize();
+
+        return new CurrentComments(headSeqNumber, bitstreamSerialNumber, commentPos,
+                                   commentSize, padding, encodedLength);
+    }
+
+    /**
+     * Adds padding to the new comments if the padding of the current comments
+     * isn't preserved.
+     *
+     * @return the number of pages of the new comments
+     */
+    private int prepareComments(CurrentComments current) {
+        if (current.padding() >= 0) {
+            addPadding(current.commentSize(), current.padding());
+        } else {
+            LOGGER.debug("Preserving padding");
+        }
+
+        LOGGER.debug("Comment size {} - new {}. Encoded {} - new {}",
+                     current.commentSize(), commentBytes.getCount(),
+                     current.encodedLength(), commentBytes.pageEncodedLength());
+
+        return commentBytes.pageCount();
+    }
+
     private long hasPadding(OpusInputStream opus) throws IOException {
         InputStream is = opus.opusTagPadding();
         int r = is.read();
@@ -186,12 +429,80 @@ public class OpusMetadataWriter {
         }
     }
 
+    /**
+     * Tries to write the new comments in the pages of the current comments. The padding
+     * is used as slack: the number of pages, their sizes and their header are kept, so the
+     * audio pages don't move and don't need to be renumbered.
+     *
+     * @param commentPos position of the first page of the current comments
+     * @param encodedLength size in bytes of all pages of the current comments
+     * @param canResizePadding false if the padding must be preserved
+     * @return true if the comments were written.
+     */
+    private boolean reuseCommentPages(FileChannel fc, long commentPos, long encodedLength, boolean canResizePadding)
+            throws IOException {
+        if (encodedLength <= 0 || encodedLength > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        ByteBuffer pages = ByteBuffer.allocate((int) encodedLength).order(ByteOrder.LITTLE_ENDIAN);
+        while (pages.hasRemaining()) {
+            if (fc.read(pages, commentPos + pages.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        pages.flip();
+
+        // the size of the current comments with their padding
+        OggPage page = new OggPage();
+        long available = 0;
+        while (pages.hasRemaining()) {
+            page.readPageHeader(pages);
+            available += page.getPacketSize();
+            pages.position(pages.position() + page.getPacketSize());
+        }
+
+        long padding = available - commentBytes.getCount();
+        if (padding < 0 || padding > MAX_PADDING || (!canResizePadding && padding != 0)) {
+            LOGGER.debug("Can't write comments in place: {} bytes available, {} bytes needed",
+                         available, commentBytes.getCount());
+            return false;
+        }
+
+        LOGGER.debug("Writing comments in place with {} bytes of padding", padding);
+        for (long i = 0; i < padding; i++) {
+            commentBytes.write(0);
+        }
+
+        // replace the content of each page and update their CRC
+        byte[] comment = commentBytes.getBuffer();
+        int commentOffset = 0;
+        pages.rewind();
+        while (pages.hasRemaining()) {
+            int start = pages.position();
+            page.readPageHeader(pages);
+            writtenPages.add(new WrittenPage(commentPos + start, commentOffset));
+            pages.put(comment, commentOffset, page.getPacketSize());
+            commentOffset += page.getPacketSize();
+
+            pages.putInt(start + 22, 0);
+            pages.putInt(start + 22, CRC32.getCRC(pages, start, page.getPageSize()));
+        }
+
+        pages.flip();
+        while (pages.hasRemaining()) {
+            fc.write(pages, commentPos + pages.position());
+        }
+
+        return true;
+    }
+
     private void addPadding(long currentCommentSize, long currentPaddingSize) {
         int newCommentSize = commentBytes.getCount();
         long currentOpusTagSize = currentCommentSize + currentPaddingSize;
 
-        int low = 1024;
-        int high = 10 * low;
+        int low = MIN_PADDING;
+        int high = MAX_PADDING;
 
         long newPadding = currentOpusTagSize - newCommentSize;
         if (newPadding < low || newPadding > high) {
@@ -230,6 +541,7 @@ public class OpusMetadataWriter {
 
             tmp.clear();
             writePageHeader(tmp, firstPage, lastPage, bitstreamNum, pageSeqNum, dataSize);
+            writtenPages.add(new WrittenPage(fc.position(), comment.position()));
             tmp.put(comment);
 
             tmp.putInt(22, CRC32.getCRC(tmp, 0, pageSize));
@@ -316,6 +628,81 @@ public class OpusMetadataWriter {
         }
     }
 
+    /**
+     * Copies all pages starting at srcPos to dest and renumbers them.
+     * Pages are read in large chunks and written chunk by chunk.
+     */
+    private void copyAndRenumber(FileChannel src, long srcPos, FileChannel dest, long destPos, int seqNum)
+            throws IOException {
+        ByteBuffer buff = ByteBuffer.allocate(COPY_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        OggPage page = new OggPage();
+
+        boolean eof = false;
+        while (!eof) {
+            int r = src.read(buff, srcPos);
+            if (r < 0) {
+                eof = true;
+            } else {
+                srcPos += r;
+            }
+            buff.flip();
+
+            // renumber all complete pages
+            int start = buff.position();
+            while (buff.remaining() >= OggPage.MIN_HEADER_SIZE) {
+                int pageStart = buff.position();
+                if (buff.remaining() < OggPage.MIN_HEADER_SIZE + Byte.toUnsignedInt(buff.get(pageStart + 26))) {
+                    break;
+                }
+
+                page.readPageHeader(buff);
+                if (pageStart + page.getPageSize() > buff.limit()) {
+                    buff.position(pageStart);
+                    break;
+                }
+
+                buff.putInt(pageStart + 18, seqNum);
+                buff.putInt(pageStart + 22, 0);
+                buff.putInt(pageStart + 22, CRC32.getCRC(buff, pageStart, page.getPageSize()));
+                buff.position(pageStart + page.getPageSize());
+                seqNum++;
+            }
+
+            if (eof && buff.hasRemaining()) {
+                throw new IOException("Unterminated Ogg page");
+            }
+
+            // write them
+            int end = buff.position();
+            buff.position(start);
+            int lim = buff.limit();
+            buff.limit(end);
+            while (buff.hasRemaining()) {
+                destPos += dest.write(buff, destPos);
+            }
+
+            buff.limit(lim);
+            buff.compact();
+        }
+    }
+
+    private record PictureValue(int offset, int length) {
+
+    }
+
+    /**
+     * @param position position of the page in the file
+     * @param dataStart position in commentBytes of the first byte of the page's data
+     */
+    private record WrittenPage(long position, int dataStart) {
+
+    }
+
+    private record CurrentComments(int headSeqNumber, int bitstreamSerialNumber, int commentPos,
+                                   long commentSize, long padding, long encodedLength) {
+
+    }
+
     private static class CommentBytes extends ByteArrayOutputStream {
 
         public void writeIntAt(int pos, int value) {
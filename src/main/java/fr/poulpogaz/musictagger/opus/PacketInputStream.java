@@ -19,7 +19,7 @@ public class PacketInputStream extends InputStream {
     @Override
     public int read() throws IOException {
         if (readNextPageIfNeeded()) {
-            return currentPage.getData()[position++] & 0xFF;
+            return currentPage.getPayload().get(position++) & 0xFF;
         } else {
             return -1;
         }
@@ -38,9 +38,8 @@ public class PacketInputStream extends InputStream {
                 break;
             }
 
-            byte[] data = currentPage.getData();
             int length = Math.min(remaining, currentPage.getPacketSize() - position);
-            System.arraycopy(data, position, b, pos, length);
+            currentPage.getPayload().get(position, b, pos, length);
             position += length;
             pos += length;
             remaining -= length;
@@ -0,0 +1,22 @@
+package fr.poulpogaz.musictagger.opus;
+
+/**
+ * How {@link OpusMetadataWriter} writes comments to a file.
+ */
+public enum SaveStrategy {
+
+    /**
+     * The file is modified directly. If comments don't fit in the current
+     * comment pages, audio data is moved inside the file.
+     * Fast but a crash can leave the file corrupted.
+     */
+    IN_PLACE,
+
+    /**
+     * The new file is written to a temporary file that then replaces the
+     * original file. Audio pages are copied with {@link java.nio.channels.FileChannel#transferTo}
+     * when they don't need to be renumbered.
+     * The file is never left corrupted but the whole file is written.
+     */
+    TEMP_FILE
+}
@@ -0,0 +1,24 @@
+package fr.poulpogaz.musictagger.opus;
+
+/**
+ * Which Ogg pages have their CRC verified when they are read.
+ */
+public enum VerificationPolicy {
+
+    /**
+     * Every page is verified
+     */
+    ALL,
+
+    /**
+     * Only header pages are verified. Header pages are all pages
+     * before the first page with a positive granule position.
+     * For Opus, they contain the OpusHead and OpusTags packets.
+     */
+    HEADERS,
+
+    /**
+     * No page is verified
+     */
+    NONE
+}
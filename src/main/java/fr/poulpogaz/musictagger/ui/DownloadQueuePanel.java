@@ -3,6 +3,7 @@ package fr.poulpogaz.musictagger.ui;
 import fr.poulpogaz.musictagger.downloader.*;
 import fr.poulpogaz.musictagger.ui.layout.VerticalConstraint;
 import fr.poulpogaz.musictagger.ui.layout.VerticalLayout;
+import fr.poulpogaz.musictagger.ui.table.TablePopupMenuSupport;
 
 import javax.swing.*;
 import javax.swing.table.AbstractTableModel;
@@ -11,9 +12,14 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.HierarchyEvent;
 import java.awt.event.HierarchyListener;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 public class DownloadQueuePanel extends JPanel {
 
@@ -23,8 +29,9 @@ public class DownloadQueuePanel extends JPanel {
     private final DownloadListener downloadListener;
 
 
-    // RUNNING TASK
-    private RunningTaskPanel runningTaskPanel;
+    // RUNNING TASKS
+    private JPanel runningTasksContainer;
+    private final Map<DownloadTask, RunningTaskPanel> runningTaskPanels = new LinkedHashMap<>();
     private JLabel noDownloadLabel;
     private final Timer timer;
 
@@ -37,18 +44,20 @@ public class DownloadQueuePanel extends JPanel {
     private TableModel tableModel;
     private JButton cancelSelected;
     private boolean empty = true;
+    private boolean queueRefreshPending;
 
     public DownloadQueuePanel() {
         initComponents();
 
         addHierarchyListener(createHierarchyListener());
         downloadListener = createDownloadListener();
-        timer = new Timer(200, (e) -> runningTaskPanel.updateProgressComponent());
+        timer = new Timer(200, (e) -> runningTaskPanels.values().forEach(RunningTaskPanel::updateProgressComponent));
     }
 
 
     private void initComponents() {
-        runningTaskPanel = new RunningTaskPanel();
+        runningTasksContainer = new JPanel();
+        runningTasksContainer.setLayout(new VerticalLayout());
         noDownloadLabel = new JLabel("No download in progress", SwingConstants.CENTER);
 
         createQueueContainer();
@@ -76,6 +85,10 @@ public class DownloadQueuePanel extends JPanel {
         TableColumn position = table.getColumnModel().getColumn(1);
         position.setMaxWidth(position.getPreferredWidth());
 
+        TableColumn priority = table.getColumnModel().getColumn(2);
+        priority.setMaxWidth(priority.getPreferredWidth());
+
+        TablePopupMenuSupport.install(table, createQueuePopupMenu());
         tableScrollPane = new JScrollPane(table);
 
         cancelSelected = new JButton("Cancel selected");
@@ -88,9 +101,61 @@ public class DownloadQueuePanel extends JPanel {
     }
 
 
+    private JPopupMenu createQueuePopupMenu() {
+        JPopupMenu menu = new JPopupMenu();
+
+        JMenuItem next = menu.add("Download next");
+        next.addActionListener(_ -> reorderSelected(DownloadManager::moveToFront));
+
+        JMenuItem last = menu.add("Download last");
+        last.addActionListener(_ -> reorderSelected(DownloadManager::moveToBack));
+
+        JMenu priority = new JMenu("Priority");
+        for (Priority p : Priority.values()) {
+            JMenuItem item = priority.add(p.toString());
+            item.addActionListener(_ -> reorderSelected(task -> task.setPriority(p)));
+        }
+        menu.add(priority);
+
+        menu.addSeparator();
+        JMenuItem cancel = menu.add("Cancel");
+        cancel.addActionListener(this::cancelSelected);
+
+        return menu;
+    }
+
+    private void reorderSelected(Consumer<DownloadTask> action) {
+        List<DownloadTask> selected = getSelectedTasks();
+        if (selected.isEmpty()) {
+            return;
+        }
+
+        for (DownloadTask task : selected) {
+            action.accept(task);
+        }
+
+        // the manager doesn't fire events when the queue is reordered
+        tableModel.setTasks(DownloadManager.getQueue());
+        for (DownloadTask task : selected) {
+            int row = tableModel.contents.indexOf(task);
+            if (row >= 0) {
+                table.addRowSelectionInterval(row, row);
+            }
+        }
+    }
+
     private void cancelSelected(ActionEvent actionEvent) {
+        for (DownloadTask task : getSelectedTasks()) {
+            task.cancel();
+        }
+
+        table.getSelectionModel().clearSelection();
+    }
+
+    private List<DownloadTask> getSelectedTasks() {
+        List<DownloadTask> tasks = new ArrayList<>();
         if (table.getSelectedColumnCount() == 0) {
-            return;
+            return tasks;
         }
 
         ListSelectionModel m = table.getSelectionModel();
@@ -100,11 +165,11 @@ public class DownloadQueuePanel extends JPanel {
 
         for (int i = min; i <= max; i++) {
             if (m.isSelectedIndex(i)) {
-                tableModel.contents.get(i).cancel();
+                tasks.add(tableModel.contents.get(i));
             }
         }
 
-        m.clearSelection();
+        return tasks;
     }
 
 
@@ -122,43 +187,67 @@ public class DownloadQueuePanel extends JPanel {
     }
 
     private void setupComponent() {
-        setRunningTask(DownloadManager.getRunningTask());
+        for (DownloadTask task : DownloadManager.getRunningTasks()) {
+            addRunningTask(task);
+        }
         tableModel.setTasks(DownloadManager.getQueue());
         updateQueueContainerLayout(tableModel.contents.isEmpty(), true);
         DownloadManager.addListener(EventThread.SWING_THREAD, downloadListener);
     }
 
     private void unSetupComponent() {
-        setRunningTask(null);
+        for (DownloadTask task : List.copyOf(runningTaskPanels.keySet())) {
+            removeRunningTask(task);
+        }
         tableModel.removeAll();
         updateQueueContainerLayout(true, true);
         DownloadManager.removeListener(EventThread.SWING_THREAD, downloadListener);
     }
 
-    private void setRunningTask(DownloadTask task) {
-        if (task == null) {
-            if (noDownloadLabel.getParent() == null) {
-                remove(runningTaskPanel);
-                add(noDownloadLabel, BorderLayout.NORTH);
-                stopTimer();
-                revalidate();
-                repaint();
-            }
-        } else {
-            runningTaskPanel.set(task);
-            startTimer();
+    private void addRunningTask(DownloadTask task) {
+        if (runningTaskPanels.containsKey(task)) {
+            return;
+        }
 
-            if (runningTaskPanel.getParent() == null) {
-                remove(noDownloadLabel);
-                add(runningTaskPanel, BorderLayout.NORTH);
-                revalidate();
-                repaint();
-            }
+        RunningTaskPanel panel = new RunningTaskPanel();
+        panel.set(task);
+        runningTaskPanels.put(task, panel);
+
+        VerticalConstraint c = new VerticalConstraint();
+        c.fillXAxis = true;
+        c.bottomGap = 4;
+        runningTasksContainer.add(panel, c);
+
+        if (runningTasksContainer.getParent() == null) {
+            remove(noDownloadLabel);
+            add(runningTasksContainer, BorderLayout.NORTH);
         }
+        startTimer();
+
+        revalidate();
+        repaint();
+    }
+
+    private void removeRunningTask(DownloadTask task) {
+        RunningTaskPanel panel = runningTaskPanels.remove(task);
+        if (panel == null) {
+            return;
+        }
+
+        runningTasksContainer.remove(panel);
+
+        if (runningTaskPanels.isEmpty()) {
+            remove(runningTasksContainer);
+            add(noDownloadLabel, BorderLayout.NORTH);
+            stopTimer();
+        }
+
+        revalidate();
+        repaint();
     }
 
     private void startTimer() {
-        if (runningTaskPanel.task != null) {
+        if (!runningTaskPanels.isEmpty()) {
             timer.start();
         }
     }
@@ -175,29 +264,26 @@ public class DownloadQueuePanel extends JPanel {
         return (event, task) -> {
             switch (event) {
                 case DownloadListener.Event.QUEUED -> {
-                    tableModel.addTask(task);
+                    // the task may be queued again to be retried
+                    removeRunningTask(task);
+                    refreshQueueLater();
                 }
                 case DownloadListener.Event.STARTED -> {
                     tableModel.removeTask(task);
-                    setRunningTask(task);
+                    addRunningTask(task);
                 }
                 case DownloadListener.Event.CANCELED -> {
-                    if (task == runningTaskPanel.task) {
-                        setRunningTask(tableModel.contents.peekFirst());
+                    if (runningTaskPanels.containsKey(task)) {
+                        removeRunningTask(task);
                     } else if (task != null) {
                         tableModel.removeTask(task);
                     } else {
                         tableModel.removeCancelledTasks();
                     }
                 }
-                case DownloadListener.Event.FINISHED -> {
-                    // set running task to the next one in the queue
-                    // it avoids stopping the timer
-                    setRunningTask(tableModel.contents.peekFirst());
-                }
-                case DownloadListener.Event.FAILED -> {
+                case DownloadListener.Event.FINISHED, DownloadListener.Event.FAILED -> {
                     tableModel.removeTask(task);
-                    setRunningTask(tableModel.contents.peekFirst());
+                    removeRunningTask(task);
                 }
             }
 
@@ -205,6 +291,24 @@ public class DownloadQueuePanel extends JPanel {
         };
     }
 
+    /**
+     * Reloads the queue from the manager once all pending events are processed.
+     * The task isn't necessarily at the end of the queue, and many tasks are
+     * usually queued at the same time.
+     */
+    private void refreshQueueLater() {
+        if (!queueRefreshPending) {
+            queueRefreshPending = true;
+
+            SwingUtilities.invokeLater(() -> {
+                queueRefreshPending = false;
+                if (isDisplayable()) {
+                    tableModel.setTasks(DownloadManager.getQueue());
+                }
+            });
+        }
+    }
+
     private void updateQueueContainerLayout(boolean empty, boolean force) {
         if (!force && empty == this.empty) {
             return;
@@ -331,12 +435,6 @@ public class DownloadQueuePanel extends JPanel {
 
         }
 
-        public void addTask(DownloadTask task) {
-            int i = contents.size();
-            contents.add(task);
-            fireTableRowsInserted(i, i);
-        }
-
         public void removeTask(DownloadTask task) {
             if (contents.remove(task)) {
                 fireTableDataChanged();
@@ -368,7 +466,7 @@ public class DownloadQueuePanel extends JPanel {
 
         @Override
         public int getColumnCount() {
-            return 4;
+            return 5;
         }
 
         @Override
@@ -376,8 +474,9 @@ public class DownloadQueuePanel extends JPanel {
             return switch (column) {
                 case 0 -> "Status";
                 case 1 -> "Position";
-                case 2 -> "ID";
-                case 3 -> "Description";
+                case 2 -> "Priority";
+                case 3 -> "ID";
+                case 4 -> "Description";
                 default -> throw new IllegalStateException("Unexpected value: " + column);
             };
         }
@@ -388,8 +487,9 @@ public class DownloadQueuePanel extends JPanel {
             return switch (columnIndex) {
                 case 0 -> task.getStateImmediately().toString();
                 case 1 -> rowIndex + 1;
-                case 2 -> task.getID();
-                case 3 -> task.getDescription();
+                case 2 -> task.getPriority().toString();
+                case 3 -> task.getID();
+                case 4 -> task.getDescription();
                 default -> throw new IllegalStateException("Unexpected value: " + columnIndex);
             };
         }
@@ -2,11 +2,13 @@ package fr.poulpogaz.musictagger.ui;
 
 import fr.poulpogaz.musictagger.downloader.DownloadListener;
 import fr.poulpogaz.musictagger.downloader.DownloadManager;
+import fr.poulpogaz.musictagger.downloader.EventThread;
 import fr.poulpogaz.musictagger.model.*;
 import fr.poulpogaz.musictagger.ui.dialogs.Dialogs;
 import fr.poulpogaz.musictagger.ui.dialogs.ExportDialog;
 import fr.poulpogaz.musictagger.ui.layout.*;
 import fr.poulpogaz.musictagger.utils.AbstractLazyImage;
+import fr.poulpogaz.musictagger.utils.Thumbnails;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -40,6 +42,7 @@ public class MTFrame extends JFrame {
 
     private JPanel bottomBar;
     private JLabel loadingFilesLabel;
+    private JLabel savingFilesLabel;
     private JLabel loadedMusicsLabel;
     private JLabel newMusicsLabel;
     private JLabel downloadCountLabel;
@@ -119,6 +122,8 @@ public class MTFrame extends JFrame {
 
     private JPanel createBottomBar() {
         loadingFilesLabel = new JLabel("0 files loading");
+        savingFilesLabel = new JLabel("0 files saving");
+        savingFilesLabel.setVisible(false);
         loadedMusicsLabel = new JLabel(Templates.totalMusicCount() + " musics");
 
         newMusicsLabel = new JLabel("New");
@@ -136,6 +141,7 @@ public class MTFrame extends JFrame {
         bottomBar.add(newMusicsLabel, c);
         bottomBar.add(loadedMusicsLabel, c);
         bottomBar.add(loadingFilesLabel, c);
+        bottomBar.add(savingFilesLabel, c);
 
         return bottomBar;
     }
@@ -144,6 +150,11 @@ public class MTFrame extends JFrame {
         loadingFilesLabel.setText(count + " files loading");
     }
 
+    public void setSavingFileCount(long count) {
+        savingFilesLabel.setText(count + " files saving");
+        savingFilesLabel.setVisible(count > 0);
+    }
+
 
 
     private JMenuBar createJMenuBar() {
@@ -211,7 +222,7 @@ public class MTFrame extends JFrame {
         }
 
         Templates.addTemplatesListener(createTemplatesListener());
-        DownloadManager.addListener(createDownloadListener());
+        DownloadManager.addListener(EventThread.SWING_THREAD, createDownloadListener());
         addWindowListener(createWindowListener());
 
         templatesPanel.addChangeListener(_ -> updateTemplateActions());
@@ -275,8 +286,16 @@ public class MTFrame extends JFrame {
             close = ret == JOptionPane.YES_OPTION;
         }
 
+        if (close && MusicSaver.isSaving()) {
+            int ret = JOptionPane.showConfirmDialog(this, "Musics are being saved. Closing the window will cancel the save of musics that aren't written yet. Quit anyway ?", "Cancel save ?", JOptionPane.YES_NO_OPTION);
+            close = ret == JOptionPane.YES_OPTION;
+        }
+
         if (close) {
+            MusicSaver.cancelSave();
+            MusicSaver.shutdown();
             AbstractLazyImage.shutdown();
+            Thumbnails.shutdown();
             MusicLoader.shutdown();
             DownloadManager.shutdown();
             DownloadManager.cancelAll();
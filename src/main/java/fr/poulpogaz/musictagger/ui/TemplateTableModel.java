@@ -2,18 +2,33 @@ package fr.poulpogaz.musictagger.ui;
 
 import fr.poulpogaz.musictagger.downloader.*;
 import fr.poulpogaz.musictagger.model.*;
+import fr.poulpogaz.musictagger.opus.OpusFile;
+import fr.poulpogaz.musictagger.opus.OpusFileIndex;
 import fr.poulpogaz.musictagger.ui.table.AbstractRevertTableModel;
 import fr.poulpogaz.musictagger.ui.table.MTableModel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import javax.swing.*;
 import javax.swing.event.TableModelEvent;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 public class TemplateTableModel extends AbstractRevertTableModel implements MTableModel {
 
+    private static final Logger LOGGER = LogManager.getLogger(TemplateTableModel.class);
+
+    // maximal number of musics downloaded by a single yt-dlp process
+    private static final int BATCH_SIZE = 32;
+
     private final Template template;
     private final TemplateData data;
 
@@ -248,23 +263,136 @@ public class TemplateTableModel extends AbstractRevertTableModel implements MTab
         int min = selectedRows.getMinSelectionIndex();
         int max = Math.min(selectedRows.getMaxSelectionIndex() + 1, getRowCount());
 
+        List<BatchDownloadTask.Item> items = new ArrayList<>();
         for (int i = min; i <= max; i++) {
             if (selectedRows.isSelectedIndex(i)) {
-                download(i, false);
+                items.add(createItem(i));
             }
         }
 
+        download(items, Priority.NORMAL);
         fireTableRowsUpdated(min, max);
     }
 
     public void download(int row) {
-        download(row, true);
+        // the user is waiting for this music: don't wait behind large downloads
+        download(List.of(createItem(row)), Priority.HIGH);
+        fireTableRowsUpdated(row, row);
+    }
+
+    /**
+     * Searches the files already downloaded in the {@link OpusFileIndex} on a
+     * background thread, then, on the EDT, links the musics to them and downloads
+     * the others. Musics are marked as downloading meanwhile, so they can't be
+     * edited or downloaded twice.
+     */
+    private void download(List<BatchDownloadTask.Item> items, Priority priority) {
+        for (BatchDownloadTask.Item item : items) {
+            item.music().setDownloading(true);
+        }
+
+        new SwingWorker<List<OpusFile>, Void>() {
+            @Override
+            protected List<OpusFile> doInBackground() {
+                OpusFileIndex index = OpusFileIndex.getInstance();
+
+                List<OpusFile> files = new ArrayList<>(items.size());
+                for (BatchDownloadTask.Item item : items) {
+                    files.add(index.findByURL(item.url()));
+                }
+                return files;
+            }
+
+            @Override
+            protected void done() {
+                List<OpusFile> files;
+                try {
+                    files = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    LOGGER.warn("Failed to search downloaded files", e);
+                    files = Collections.nCopies(items.size(), null);
+                }
+
+                List<BatchDownloadTask.Item> toDownload = new ArrayList<>();
+                for (int i = 0; i < items.size(); i++) {
+                    BatchDownloadTask.Item item = items.get(i);
+                    OpusFile file = files.get(i);
+
+                    if (file == null) {
+                        toDownload.add(item);
+                    } else {
+                        item.music().setDownloading(false);
+                        linkDownloaded(item, file);
+                    }
+                }
+
+                batchDownload(toDownload, priority);
+            }
+        }.execute();
+    }
+
+    /**
+     * Downloads the musics, those whose output is known before downloading
+     * with a single yt-dlp process
+     */
+    private void batchDownload(List<BatchDownloadTask.Item> items, Priority priority) {
+        List<BatchDownloadTask.Item> batch = new ArrayList<>();
+        Set<String> urls = new HashSet<>();
+        for (BatchDownloadTask.Item item : items) {
+            if (BatchDownloadTask.canBatch(item) && urls.add(item.url())) {
+                batch.add(item);
+
+                if (batch.size() == BATCH_SIZE) {
+                    downloadBatch(batch, priority);
+                    batch.clear();
+                }
+            } else {
+                download(item, priority);
+            }
+        }
+
+        if (batch.size() == 1) {
+            download(batch.getFirst(), priority);
+        } else if (!batch.isEmpty()) {
+            downloadBatch(batch, priority);
+        }
     }
 
-    private void download(int row, boolean fireEvent) {
+    /**
+     * Links the music of the item to a file already downloaded from its URL,
+     * instead of downloading it again. The metadata of the music are kept:
+     * they are written to the file on the next save if they differ from its tags.
+     */
+    private void linkDownloaded(BatchDownloadTask.Item item, OpusFile file) {
+        Music m = item.music();
+        if (!file.getPath().equals(m.getPath())) {
+            List<List<String>> values = new ArrayList<>(template.keyCount());
+            for (int i = 0; i < template.keyCount(); i++) {
+                values.add(new ArrayList<>(m.getMetadata(i)));
+            }
+
+            m.set(file);
+            for (int i = 0; i < template.keyCount(); i++) {
+                if (!values.get(i).isEmpty()) {
+                    m.removeMetadata(i);
+                    m.addAllMetadata(template.getKeyMetadataField(i), values.get(i));
+                }
+            }
+        }
+
+        for (Template.MetadataGenerator generator : template.getGenerators()) {
+            m.removeMetadata(generator.getKey());
+            m.addMetadata(generator.getKey(), item.metadata().get(generator.getKey()));
+        }
+
+        m.notifyChanges();
+    }
+
+    private BatchDownloadTask.Item createItem(int row) {
         Music m = data.getMusic(row);
-        YTDLP ytdlp = SimpleDownloadTask.ytdlp(m.getDownloadURL());
-        ytdlp.setMetadata("template", template.getName());
+
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("template", template.getName());
 
         Map<String, String> t = new HashMap<>();
         for (int i = 0; i < template.keyCount(); i++) {
@@ -272,33 +400,45 @@ public class TemplateTableModel extends AbstractRevertTableModel implements MTab
             String tag = (String) getValueAt(row, i + 1);
 
             if (tag != null) {
-                ytdlp.setMetadata(key.getMetadataField(), tag);
+                metadata.put(key.getMetadataField(), tag);
                 t.put(key.getName(), tag);
             }
         }
 
         for (Template.MetadataGenerator generator : template.getGenerators()) {
-            ytdlp.setMetadata(generator.getKey(), generator.getFormatter().format(t));
+            metadata.put(generator.getKey(), generator.getFormatter().format(t));
         }
 
         Formatter formatter = template.getFormatter();
-        if (formatter != null) {
-            ytdlp.setOutput(formatter.format(t));
-        }
+        String output = formatter == null ? null : formatter.format(t);
+
+        return new BatchDownloadTask.Item(m, m.getDownloadURL(), output, metadata);
+    }
 
-        SimpleDownloadTask task = new SimpleDownloadTask(m, ytdlp);
+    private void download(BatchDownloadTask.Item item, Priority priority) {
+        SimpleDownloadTask task = new SimpleDownloadTask(item.music(), item.url(), item.output(), item.metadata());
+        offer(task, List.of(item), priority);
+    }
+
+    private void downloadBatch(List<BatchDownloadTask.Item> items, Priority priority) {
+        offer(new BatchDownloadTask(items), List.copyOf(items), priority);
+    }
+
+    private void offer(DownloadTask task, List<BatchDownloadTask.Item> items, Priority priority) {
+        task.setGroup(template.getName());
+        task.setPriority(priority);
         task.addListener(EventThread.SWING_THREAD, (event, _) -> {
             if (event != DownloadListener.Event.QUEUED && event != DownloadListener.Event.STARTED) {
-                m.setDownloading(false);
-                m.notifyChanges();
+                for (BatchDownloadTask.Item item : items) {
+                    item.music().setDownloading(false);
+                    item.music().notifyChanges();
+                }
             }
         });
 
-        m.setDownloading(true);
-        DownloadManager.offer(task);
-
-        if (fireEvent) {
-            fireTableRowsUpdated(row, row);
+        for (BatchDownloadTask.Item item : items) {
+            item.music().setDownloading(true);
         }
+        DownloadManager.offer(task);
     }
 }
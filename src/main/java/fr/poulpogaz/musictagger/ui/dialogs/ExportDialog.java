@@ -10,6 +10,7 @@ import fr.poulpogaz.musictagger.ui.layout.HorizontalConstraint;
 import fr.poulpogaz.musictagger.ui.layout.HorizontalLayout;
 import fr.poulpogaz.musictagger.ui.text.MTextField;
 import fr.poulpogaz.musictagger.ui.text.TextUtils;
+import fr.poulpogaz.musictagger.utils.EDTExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -24,7 +25,6 @@ import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Iterator;
-import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 public class ExportDialog extends AbstractDialog {
@@ -245,14 +245,17 @@ public class ExportDialog extends AbstractDialog {
         dispose();
     }
 
-    private class Worker extends SwingWorker<Void, Integer> {
+    private class Worker extends SwingWorker<Void, Void> {
 
         private static final Logger LOGGER = LogManager.getLogger(Worker.class);
 
         @Override
         protected Void doInBackground() throws Exception {
             int total = selectComponent.countMusics();
-            publish(total);
+            EDTExecutor.getInstance().execute(() -> {
+                progress.setMaximum(total);
+                setProgressBar(0);
+            });
 
             LOGGER.debug("{} musics to export", total);
 
@@ -266,7 +269,6 @@ public class ExportDialog extends AbstractDialog {
                 jw.beginArray();
 
                 String coverOut = pngFormat.getText();
-                long lastTime = System.currentTimeMillis();
                 int processed = 0;
                 Iterator<Music> it = selectComponent.iterator();
                 while (!worker.isCancelled() && it.hasNext()) {
@@ -284,10 +286,9 @@ public class ExportDialog extends AbstractDialog {
                     m.writeTo(jw, saveImage.isSelected() && inJSON.isSelected(), coverOutput);
                     processed++;
 
-                    if (System.currentTimeMillis() - lastTime > 200) {
-                        publish(processed);
-                        lastTime = System.currentTimeMillis();
-                    }
+                    // only the last value is shown if the EDT is slower than the worker
+                    int p = processed;
+                    EDTExecutor.getInstance().submit(this, () -> setProgressBar(p));
                 }
 
                 jw.endArray();
@@ -298,24 +299,6 @@ public class ExportDialog extends AbstractDialog {
         }
 
 
-        private boolean maxSet = false;
-
-        @Override
-        protected void process(List<Integer> chunks) {
-            if (maxSet) {
-                setProgressBar(chunks.getLast());
-            } else {
-                maxSet = true;
-                progress.setMaximum(chunks.getFirst());
-
-                if (chunks.size() > 1) {
-                    setProgressBar(chunks.getLast());
-                } else {
-                    setProgressBar(0);
-                }
-            }
-        }
-
         @Override
         protected void done() {
             if (isCancelled()) {
@@ -327,7 +310,8 @@ public class ExportDialog extends AbstractDialog {
                     LOGGER.debug("Failed to export", e);
                 }
 
-                setProgressBar(progress.getMaximum());
+                // after the last progress update, which may still be pending
+                EDTExecutor.getInstance().submit(this, () -> setProgressBar(progress.getMaximum()));
 
                 done = true;
                 export.setEnabled(true);
@@ -26,11 +26,14 @@ import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.Objects;
+import java.util.function.BiConsumer;
 
 public class MetadataDialog extends AbstractDialog {
 
     private static final Logger LOGGER = LogManager.getLogger(MetadataDialog.class);
 
+    private static final int THUMBNAIL_SIZE = 384;
+
     public static void showDialog(JFrame parent, Music music) {
         MetadataDialog d = new MetadataDialog(parent, Objects.requireNonNull(music));
         d.setVisible(true);
@@ -130,7 +133,19 @@ public class MetadataDialog extends AbstractDialog {
     }
 
     private void cancel() {
-        dispose(); // + cancel image loaderX
+        dispose();
+    }
+
+    @Override
+    public void dispose() {
+        // thumbnails that aren't loaded yet won't be shown
+        for (Row row : metadataModel.getRows()) {
+            if (row instanceof CovertArtRow r) {
+                r.cancelThumbnail();
+            }
+        }
+
+        super.dispose();
     }
 
     private void apply() {
@@ -449,6 +464,7 @@ public class MetadataDialog extends AbstractDialog {
         private LazyImage image;
 
         private LazyImage thumbnail;
+        private BiConsumer<BufferedImage, Throwable> thumbnailCallback;
         private CoverType type;
         private String description;
 
@@ -465,6 +481,7 @@ public class MetadataDialog extends AbstractDialog {
         public void setImage(LazyImage image) {
             if (image != this.image) {
                 this.image = image;
+                cancelThumbnail();
                 thumbnail = null;
                 if (table != null) {
                     table.fireTableCellUpdated(index, 1);
@@ -479,9 +496,19 @@ public class MetadataDialog extends AbstractDialog {
                 return;
             }
 
-            thumbnail = lazyImage.transformAsync(MetadataDialog::resize);
-            thumbnail.getImageLater((_, _) -> table.fireTableCellUpdated(index, 1),
-                                    Utils.eventQueueExecutor());
+            thumbnail = Thumbnails.get(lazyImage, THUMBNAIL_SIZE);
+            thumbnailCallback = (_, _) -> {
+                thumbnailCallback = null;
+                table.fireTableCellUpdated(index, 1);
+            };
+            thumbnail.getImageLater(thumbnailCallback, Utils.eventQueueExecutor());
+        }
+
+        public void cancelThumbnail() {
+            if (thumbnailCallback != null) {
+                thumbnail.removeCallback(thumbnailCallback);
+                thumbnailCallback = null;
+            }
         }
 
         public LazyImage getFullDisplayedImage() {
@@ -549,17 +576,4 @@ public class MetadataDialog extends AbstractDialog {
             }
         }
     }
-
-    private static BufferedImage resize(BufferedImage image) {
-        Image img = ImageUtils.scale(image, 384, 384, Zoom.Fit.INSTANCE);
-        BufferedImage buff = new BufferedImage(img.getWidth(null), img.getHeight(null), BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = buff.createGraphics();
-        try {
-            g2d.drawImage(img, 0, 0, null);
-        } finally {
-            g2d.dispose();
-        }
-
-        return buff;
-    }
 }
@@ -8,6 +8,7 @@ import fr.poulpogaz.musictagger.ui.layout.HCOrientation;
 import fr.poulpogaz.musictagger.ui.layout.HorizontalConstraint;
 import fr.poulpogaz.musictagger.ui.layout.HorizontalLayout;
 import fr.poulpogaz.musictagger.ui.text.TextUtils;
+import fr.poulpogaz.musictagger.utils.EDTExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -156,7 +157,7 @@ public class MoveSwapDialog extends AbstractDialog {
         }
     }
 
-    private class Worker extends SwingWorker<Void, Integer> {
+    private class Worker extends SwingWorker<Void, Void> {
 
         private static final Logger LOGGER = LogManager.getLogger(Worker.class);
 
@@ -164,12 +165,14 @@ public class MoveSwapDialog extends AbstractDialog {
         protected Void doInBackground() {
             int total = selectComponent.countMusics();
             LOGGER.debug(total);
-            publish(total);
+            EDTExecutor.getInstance().execute(() -> {
+                progress.setMaximum(total);
+                setProgressBar(0);
+            });
 
             String from = MoveSwapDialog.this.from.getText();
             String to = MoveSwapDialog.this.to.getText();
 
-            long lastTime = System.currentTimeMillis();
             int processed = 0;
             Iterator<Music> it = selectComponent.iterator();
             while (it.hasNext()) {
@@ -193,33 +196,14 @@ public class MoveSwapDialog extends AbstractDialog {
 
                 processed++;
 
-                if (System.currentTimeMillis() - lastTime > 200) {
-                    publish(processed);
-                    lastTime = System.currentTimeMillis();
-                }
+                // only the last value is shown if the EDT is slower than the worker
+                int p = processed;
+                EDTExecutor.getInstance().submit(this, () -> setProgressBar(p));
             }
 
             return null;
         }
 
-        private boolean maxSet = false;
-
-        @Override
-        protected void process(List<Integer> chunks) {
-            if (maxSet) {
-                setProgressBar(chunks.getLast());
-            } else {
-                maxSet = true;
-                progress.setMaximum(chunks.getFirst());
-
-                if (chunks.size() > 1) {
-                    setProgressBar(chunks.getLast());
-                } else {
-                    setProgressBar(0);
-                }
-            }
-        }
-
         @Override
         protected void done() {
             if (isCancelled()) {
@@ -231,7 +215,8 @@ public class MoveSwapDialog extends AbstractDialog {
                     LOGGER.debug("Failed to move/swap", e);
                 }
 
-                setProgressBar(progress.getMaximum());
+                // after the last progress update, which may still be pending
+                EDTExecutor.getInstance().submit(this, () -> setProgressBar(progress.getMaximum()));
                 dispose();
 
                 for (Template t : Templates.getTemplates()) {
@@ -1,115 +1,173 @@
 package fr.poulpogaz.musictagger.utils;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import java.awt.image.BufferedImage;
-import java.util.Objects;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 
+/**
+ * A lazy image loaded by an {@link ImageLoader}. Callbacks given to
+ * {@link #getImageLater(BiConsumer, Executor)} are kept until the image is loaded:
+ * when the last one is removed and no thread waits in {@link #getImage()},
+ * the load is cancelled if it didn't start.
+ */
 public abstract class AbstractLazyImage implements LazyImage {
 
-    private static final ThreadPoolExecutor EXECUTOR = (ThreadPoolExecutor) ExecutorWithException.newFixedThreadPool(1);
+    private static final Logger LOGGER = LogManager.getLogger(AbstractLazyImage.class);
 
     public static void shutdown() {
-        EXECUTOR.shutdown();
+        ImageLoader.getDefault().shutdown();
     }
 
 
 
     private final Object lock = new Object();
-    private CompletableFuture<BufferedImage> future;
-    private Exception exception;
+    private Load load; // guarded by lock
+    private volatile Exception exception;
 
     @Override
     public BufferedImage getImageLater(BiConsumer<BufferedImage, Throwable> callback, Executor executor) {
         BufferedImage image;
+        Throwable error;
         synchronized (lock) {
             image = getImageNow();
-
-            if (image == null && exception == null) {
-                if (future == null) {
-                    future = CompletableFuture.supplyAsync(this::run, EXECUTOR);
+            error = exception;
+
+            if (image == null && error == null) {
+                if (load == null) {
+                    error = submit();
+                } else {
+                    // the image is still needed: load it before older requests
+                    load.request.prioritize();
                 }
 
-                if (callback != null) {
-                    if (executor == null) {
-                        future.whenComplete(callback);
-                    } else {
-                        future.whenCompleteAsync(callback, executor);
+                if (error == null) {
+                    if (callback != null) {
+                        load.callbacks.add(new Callback(callback, executor));
                     }
+                    return null;
                 }
             }
         }
 
-        if ((image != null || exception != null) && callback != null) {
-            if (executor == null) {
-                callback.accept(image, exception);
-            } else {
-                executor.execute(() -> callback.accept(image, exception));
-            }
+        if (callback != null) {
+            new Callback(callback, executor).accept(image, error);
         }
 
         return image;
     }
 
-    private BufferedImage run() {
+    /**
+     * Submits a new load to the loader. The load is published only once submitted,
+     * so a load always has a request. Must be called with lock held.
+     *
+     * @return null or the exception thrown by the loader if it is shutdown
+     */
+    private RejectedExecutionException submit() {
+        Load l = new Load();
         try {
-            BufferedImage img = loadImage();
-            onImageLoad(img);
-            return img;
-        } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            exception = e;
-            throw new CompletionException(e);
-        } finally {
-            synchronized (lock) {
-                future = null;
+            l.request = getLoader().submit(l);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Image loader is shutdown, cannot load image", e);
+            return e;
+        }
+
+        load = l;
+        return null;
+    }
+
+    @Override
+    public void removeCallback(BiConsumer<BufferedImage, Throwable> callback) {
+        synchronized (lock) {
+            if (load != null && load.callbacks.removeIf(c -> c.callback == callback)) {
+                cancelIfUnused(load);
             }
         }
     }
 
+    // must be called with lock held
+    private void cancelIfUnused(Load l) {
+        if (load == l && l.callbacks.isEmpty() && l.waiting == 0 && l.request.cancel()) {
+            load = null;
+            l.future.cancel(false);
+        }
+    }
+
     protected abstract BufferedImage loadImage() throws Exception;
 
+    /**
+     * Loads a preview of the image, see {@link #getPreview(int)}.
+     * By default, loads the full image.
+     */
+    protected BufferedImage loadImage(int size) throws Exception {
+        return loadImage();
+    }
+
+    /**
+     * @return the loader of the image
+     */
+    protected ImageLoader getLoader() {
+        return ImageLoader.getDefault();
+    }
+
     protected void onImageLoad(BufferedImage img) {
 
     }
 
     @Override
     public BufferedImage getImage() throws InterruptedException {
-        CompletableFuture<BufferedImage> f;
+        Load l;
         synchronized (lock) {
             BufferedImage img = getImageNow();
-            if (img != null) {
+            if (img != null || exception != null) {
                 return img;
             }
 
-
-            if (future == null) {
-                getImageLater(null, null);
+            getImageLater(null, null);
+            l = load;
+            if (l == null) {
+                // the loader is shutdown
+                return null;
             }
-            f = future;
-        }
-
-        if (f == null) {
-            return null;
+            l.waiting++;
         }
 
         try {
-            return f.get();
-        } catch (ExecutionException e) {
+            return l.future.get();
+        } catch (ExecutionException | CancellationException e) {
             return null;
+        } finally {
+            synchronized (lock) {
+                l.waiting--;
+                cancelIfUnused(l);
+            }
         }
     }
 
     @Override
-    public LazyImage transformAsync(Function<BufferedImage, BufferedImage> transform) {
-        return new TransformedLazyImage(this) {
-            @Override
-            protected BufferedImage transform(BufferedImage image) {
-                return transform.apply(image);
-            }
-        };
+    public LazyImage transformAsync(String name, Function<BufferedImage, BufferedImage> transform) {
+        return TransformedLazyImage.of(this, name, transform);
+    }
+
+    @Override
+    public BufferedImage getPreview(int size) throws Exception {
+        BufferedImage img = getImageNow();
+        if (img != null) {
+            return img;
+        }
+
+        img = loadImage(size);
+        if (img == null) {
+            throw new IOException("Failed to load image");
+        }
+
+        return img;
     }
 
     @Override
@@ -117,55 +175,64 @@ public abstract class AbstractLazyImage implements LazyImage {
         return exception;
     }
 
-    private static abstract class TransformedLazyImage implements LazyImage {
-
-        private final LazyImage origin;
-        private BufferedImage image;
+    private class Load implements Runnable {
 
-        public TransformedLazyImage(LazyImage origin) {
-            this.origin = Objects.requireNonNull(origin);
-        }
+        private final CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+        private final List<Callback> callbacks = new ArrayList<>(); // guarded by lock
+        private int waiting; // number of threads in getImage, guarded by lock
+        private ImageLoader.Request request; // guarded by lock
 
         @Override
-        public BufferedImage getImageNow() {
-            return image;
-        }
+        public void run() {
+            BufferedImage img = null;
+            Exception error = null;
+            try {
+                img = loadImage();
+                if (img == null) {
+                    throw new IOException("Unsupported image format");
+                }
+                onImageLoad(img);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to load image", e);
+                error = e;
+            } catch (Exception e) {
+                // runtime exceptions aren't saved: the image is loaded again next time
+                exception = e;
+                error = e;
+            }
 
-        @Override
-        public BufferedImage getImage() throws InterruptedException {
-            image = transform(origin.getImage());
-            return image;
-        }
+            List<Callback> callbacks;
+            synchronized (lock) {
+                load = null;
+                callbacks = List.copyOf(this.callbacks);
+            }
 
-        @Override
-        public BufferedImage getImageLater(BiConsumer<BufferedImage, Throwable> callback, Executor executor) {
-            if (image == null) {
-                origin.getImageLater((i, t) -> {
-                    if (i != null) {
-                        image = transform(i);
-                    }
-                    executor.execute(() -> callback.accept(image, t));
-                }, EXECUTOR);
+            if (error == null) {
+                future.complete(img);
+            } else {
+                future.completeExceptionally(error);
             }
 
-            return image;
+            for (Callback callback : callbacks) {
+                callback.accept(img, error);
+            }
         }
+    }
 
-        @Override
-        public LazyImage transformAsync(Function<BufferedImage, BufferedImage> transform) {
-            return new TransformedLazyImage(this) {
-                @Override
-                protected BufferedImage transform(BufferedImage image) {
-                    return transform.apply(image);
+    private record Callback(BiConsumer<BufferedImage, Throwable> callback, Executor executor) {
+
+        public void accept(BufferedImage image, Throwable error) {
+            if (executor != null) {
+                try {
+                    executor.execute(() -> callback.accept(image, error));
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // the executor is shutdown: the callback is still called, so no one waits forever
+                    LOGGER.debug("Executor is shutdown, calling callback in the current thread", e);
                 }
-            };
-        }
+            }
 
-        @Override
-        public Exception getException() {
-            return origin.getException();
+            callback.accept(image, error);
         }
-
-        protected abstract BufferedImage transform(BufferedImage image);
     }
 }
@@ -0,0 +1,100 @@
+package fr.poulpogaz.musictagger.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.swing.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs updates of background threads on the event dispatch thread. Pending updates
+ * are run together by a single runnable posted in the event queue, at most once per
+ * frame, so background threads can't flood the event queue.
+ * An update submitted with a key replaces the pending update with the same key:
+ * it is useful for updates like progress bars where only the last value matters.
+ * Updates run in the order they were first submitted.
+ */
+public final class EDTExecutor implements Executor {
+
+    private static final Logger LOGGER = LogManager.getLogger(EDTExecutor.class);
+
+    private static final long FRAME = 16; // millis
+
+    private static final EDTExecutor INSTANCE = new EDTExecutor();
+
+    public static EDTExecutor getInstance() {
+        return INSTANCE;
+    }
+
+
+
+    // delays flushes that would happen less than a frame after the previous one
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("edt-flush").daemon().factory());
+
+    private final Object lock = new Object();
+    private Map<Object, Runnable> pending = new LinkedHashMap<>(); // guarded by lock
+    private boolean scheduled; // guarded by lock
+    private volatile long lastFlush;
+
+    private EDTExecutor() {
+
+    }
+
+    /**
+     * Runs the update on the event dispatch thread. It is never merged with other updates.
+     */
+    @Override
+    public void execute(Runnable update) {
+        submit(new Object(), update);
+    }
+
+    /**
+     * Runs the update on the event dispatch thread, unless another update with the same
+     * key is submitted before pending updates are run: in this case, only the last one runs.
+     */
+    public void submit(Object key, Runnable update) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(update);
+
+        synchronized (lock) {
+            pending.put(key, update);
+
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+
+        long wait = lastFlush + FRAME - System.currentTimeMillis();
+        if (wait <= 0) {
+            SwingUtilities.invokeLater(this::flush);
+        } else {
+            timer.schedule(() -> SwingUtilities.invokeLater(this::flush), wait, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        Map<Object, Runnable> updates;
+        synchronized (lock) {
+            updates = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+        }
+        lastFlush = System.currentTimeMillis();
+
+        for (Runnable update : updates.values()) {
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Exception in EDT update", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package fr.poulpogaz.musictagger.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of images, bounded by the memory used by their rasters. Once the budget
+ * is exceeded, the least recently used images are evicted.
+ * <p>
+ * Images are spread over stripes, each one a {@link LinkedHashMap} in access order
+ * with its own lock, so threads loading and painting images rarely wait for each other.
+ * The eldest entry of a stripe is the least recently used of the stripe: the least
+ * recently used image of the cache is found by comparing the eldest entries of all stripes.
+ */
+public final class ImageCache {
+
+    private static final Logger LOGGER = LogManager.getLogger(ImageCache.class);
+
+    private static final int STRIPES = 16;
+
+    private static final ImageCache INSTANCE = new ImageCache(defaultMaxBytes());
+
+    public static ImageCache getInstance() {
+        return INSTANCE;
+    }
+
+    private static long defaultMaxBytes() {
+        return Math.min(Runtime.getRuntime().maxMemory() / 4, 512L << 20);
+    }
+
+    /**
+     * @return the number of bytes used by the raster of the image
+     */
+    public static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long maxBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ImageCache(long maxBytes) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        setMaxBytes(maxBytes);
+    }
+
+    private Stripe stripe(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * @return the image associated with the key or null if it isn't cached
+     */
+    public BufferedImage get(String key) {
+        Stripe stripe = stripe(key);
+
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.map.get(key);
+            if (entry != null) {
+                entry.lastAccess = clock.incrementAndGet();
+            }
+        }
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        } else {
+            hits.increment();
+            return entry.image;
+        }
+    }
+
+    public void put(String key, BufferedImage image) {
+        put(key, image, false);
+    }
+
+    /**
+     * Caches the image if no image is associated with the key.
+     *
+     * @return the image associated with the key
+     */
+    public BufferedImage putIfAbsent(String key, BufferedImage image) {
+        return put(key, image, true);
+    }
+
+    private BufferedImage put(String key, BufferedImage image, boolean ifAbsent) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(image);
+
+        Stripe stripe = stripe(key);
+        Entry entry = new Entry(image, sizeOf(image));
+
+        Entry old;
+        synchronized (stripe) {
+            old = stripe.map.get(key);
+            if (old != null && ifAbsent) {
+                old.lastAccess = clock.incrementAndGet();
+                return old.image;
+            }
+
+            entry.lastAccess = clock.incrementAndGet();
+            stripe.map.put(key, entry);
+        }
+
+        bytes.addAndGet(old == null ? entry.size : entry.size - old.size);
+        evict(key);
+
+        return image;
+    }
+
+    public void remove(String key) {
+        Stripe stripe = stripe(key);
+
+        Entry old;
+        synchronized (stripe) {
+            old = stripe.map.remove(key);
+        }
+
+        if (old != null) {
+            bytes.addAndGet(-old.size);
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            long removed = 0;
+            synchronized (stripe) {
+                for (Entry entry : stripe.map.values()) {
+                    removed += entry.size;
+                }
+                stripe.map.clear();
+            }
+
+            bytes.addAndGet(-removed);
+        }
+    }
+
+    /**
+     * Evicts the least recently used images until the cache fits in its budget.
+     * The image associated with keep is never evicted, even if it doesn't fit
+     * alone in the budget: it is being used.
+     */
+    private void evict(String keep) {
+        while (bytes.get() > maxBytes) {
+            Stripe lru = null;
+            long lruAccess = Long.MAX_VALUE;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    Map.Entry<String, Entry> eldest = stripe.map.firstEntry();
+
+                    if (eldest != null && eldest.getValue().lastAccess < lruAccess && !eldest.getKey().equals(keep)) {
+                        lru = stripe;
+                        lruAccess = eldest.getValue().lastAccess;
+                    }
+                }
+            }
+
+            if (lru == null) {
+                return;
+            }
+
+            Entry removed = null;
+            synchronized (lru) {
+                Map.Entry<String, Entry> eldest = lru.map.firstEntry();
+
+                // otherwise, it was accessed meanwhile: search again
+                if (eldest != null && eldest.getValue().lastAccess == lruAccess) {
+                    removed = lru.map.pollFirstEntry().getValue();
+                }
+            }
+
+            if (removed != null) {
+                bytes.addAndGet(-removed.size);
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Sets the maximal number of bytes used by the cached images.
+     * Images are evicted if the cache doesn't fit anymore.
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Negative budget: " + maxBytes);
+        }
+
+        LOGGER.debug("Image cache budget: {}", Units.humanReadableBytes(maxBytes));
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Stats getStats() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.map.size();
+            }
+        }
+
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), size, bytes.get());
+    }
+
+    private static class Stripe {
+
+        private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private static class Entry {
+
+        private final BufferedImage image;
+        private final long size;
+        private long lastAccess; // guarded by the lock of the stripe
+
+        public Entry(BufferedImage image, long size) {
+            this.image = image;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @param size number of cached images
+     * @param bytes memory used by the cached images
+     */
+    public record Stats(long hits, long misses, long evictions, int size, long bytes) {
+
+    }
+}
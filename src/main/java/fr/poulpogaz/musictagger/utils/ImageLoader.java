@@ -0,0 +1,143 @@
+package fr.poulpogaz.musictagger.utils;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of threads loading images. The last submitted request runs first: when
+ * a table is scrolled, images of the visible rows are loaded before those of
+ * rows that scrolled away. A request submitted again with {@link Request#prioritize()}
+ * moves in front of the queue, and a request can be cancelled until it starts.
+ */
+public final class ImageLoader implements Executor {
+
+    private static final ImageLoader DEFAULT = new ImageLoader("image-loader", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * @return the loader used by lazy images
+     */
+    public static ImageLoader getDefault() {
+        return DEFAULT;
+    }
+
+
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param name prefix of the name of the threads
+     * @param parallelism number of threads
+     */
+    public ImageLoader(String name, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+
+        executor = new ExecutorWithException(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                                             new PriorityBlockingQueue<>(),
+                                             Thread.ofPlatform().name(name + "-", 0).daemon().factory());
+    }
+
+    /**
+     * Loads the image with the task, before all requests already in the queue.
+     */
+    public Request submit(Runnable task) {
+        Request request = new Request(Objects.requireNonNull(task));
+        executor.execute(request);
+        return request;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submit(command);
+    }
+
+    /**
+     * Sets the number of threads loading images
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+
+        // the core pool size can't exceed the maximum pool size
+        if (parallelism > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(parallelism);
+            executor.setCorePoolSize(parallelism);
+        } else {
+            executor.setCorePoolSize(parallelism);
+            executor.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    public int getParallelism() {
+        return executor.getCorePoolSize();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public final class Request implements Runnable, Comparable<Request> {
+
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+
+        private final Runnable task;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private volatile long order = sequence.incrementAndGet();
+
+        private Request(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (state.compareAndSet(QUEUED, RUNNING)) {
+                task.run();
+            }
+        }
+
+        /**
+         * Moves the request in front of the queue, if it didn't start and the loader isn't shutdown
+         */
+        public void prioritize() {
+            // once shutdown, a removed request couldn't be submitted again
+            if (state.get() == QUEUED && !executor.isShutdown() && executor.remove(this)) {
+                order = sequence.incrementAndGet();
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // shutdown meanwhile: the queue is still run, put the request back
+                    executor.getQueue().add(this);
+                }
+            }
+        }
+
+        /**
+         * @return true if the request is cancelled: the task will never run.
+         * False if it already started
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(QUEUED, CANCELLED)) {
+                executor.remove(this);
+                return true;
+            }
+
+            return state.get() == CANCELLED;
+        }
+
+        @Override
+        public int compareTo(Request o) {
+            return Long.compare(o.order, order);
+        }
+    }
+}
@@ -1,17 +1,89 @@
 package fr.poulpogaz.musictagger.utils;
 
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
 
 public class ImageUtils {
 
-    public static Image scale(BufferedImage img, int availableWidth, int availableHeight, Zoom zoom) {
-        return scale(img, zoom.getScaleFactor(img, availableWidth, availableHeight));
+    /**
+     * Decodes an image, subsampled so that it is still at least twice as big as
+     * a square of size pixels: it can then be scaled down with {@link #downscale(BufferedImage, int)}.
+     * Only one pixel out of n on one line out of n is decoded, so the memory used
+     * depends on size instead of the resolution of the image.
+     *
+     * @param input a {@link java.io.File} or an {@link java.io.InputStream}, which isn't closed
+     * @param size size of the square or a negative number or zero to decode the full image
+     * @return the image or null if no reader can decode it, like {@link ImageIO#read(ImageInputStream)}
+     */
+    public static BufferedImage read(Object input, int size) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            if (iis == null) {
+                throw new IIOException("Can't create an ImageInputStream");
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (size > 0) {
+                    int n = Math.max(reader.getWidth(0), reader.getHeight(0)) / (2 * size);
+                    if (n > 1) {
+                        param.setSourceSubsampling(n, n, 0, 0);
+                    }
+                }
+
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
     }
 
-    public static Image scale(BufferedImage img, double scaleFactor) {
-        return img.getScaledInstance((int) Math.round(img.getWidth() * scaleFactor),
-                                     (int) Math.round(img.getHeight() * scaleFactor),
-                                     Image.SCALE_SMOOTH);
+    /**
+     * Scales down the image so that it fits in a square of size pixels. The image
+     * is halved with bilinear interpolation until it is less than twice the target size,
+     * then scaled to it: the result looks as good as {@link Image#SCALE_SMOOTH} but
+     * is much faster to compute. Images smaller than size are copied to an image
+     * of type {@link BufferedImage#TYPE_INT_RGB} or {@link BufferedImage#TYPE_INT_ARGB}.
+     */
+    public static BufferedImage downscale(BufferedImage img, int size) {
+        double scale = Math.min(1, Math.min((double) size / img.getWidth(), (double) size / img.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(img.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(img.getHeight() * scale));
+        int type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage current = img;
+        int width = img.getWidth();
+        int height = img.getHeight();
+        do {
+            width = Math.max(width / 2, targetWidth);
+            height = Math.max(height / 2, targetHeight);
+
+            BufferedImage next = new BufferedImage(width, height, type);
+            Graphics2D g2d = next.createGraphics();
+            try {
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2d.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                g2d.dispose();
+            }
+
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+
+        return current;
     }
 }
@@ -1,6 +1,7 @@
 package fr.poulpogaz.musictagger.utils;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.concurrent.Executor;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
@@ -20,7 +21,50 @@ public interface LazyImage {
 
     BufferedImage getImageLater(BiConsumer<BufferedImage, Throwable> callback, Executor executor);
 
-    LazyImage transformAsync(Function<BufferedImage, BufferedImage> transform);
+    /**
+     * Removes a callback given to {@link #getImageLater(BiConsumer, Executor)}, if it
+     * wasn't called yet. The image may not be loaded if nothing else needs it.
+     */
+    default void removeCallback(BiConsumer<BufferedImage, Throwable> callback) {
+
+    }
+
+    default LazyImage transformAsync(Function<BufferedImage, BufferedImage> transform) {
+        return transformAsync(null, transform);
+    }
+
+    /**
+     * @param name identifies the transform: transforms with the same name must compute
+     *             the same image from the same image. If it isn't null and the image has
+     *             an identity, the transformed image is cached and shared by all transforms
+     *             of the image with this name. Otherwise, it is computed once per call
+     *             of this method
+     */
+    LazyImage transformAsync(String name, Function<BufferedImage, BufferedImage> transform);
 
     Exception getException();
+
+    /**
+     * Decodes the image in the calling thread, possibly subsampled, so that it is
+     * still at least twice as big as a square of size pixels. The preview isn't cached.
+     * By default, the full image is returned.
+     *
+     * @see ImageUtils#read(Object, int)
+     */
+    default BufferedImage getPreview(int size) throws Exception {
+        BufferedImage img = getImage();
+        if (img == null) {
+            throw new IOException("Failed to load image", getException());
+        }
+
+        return img;
+    }
+
+    /**
+     * @return a string identifying the content of the image: images with the same
+     * identity are identical. Null if the image has no identity
+     */
+    default String getIdentity() {
+        return null;
+    }
 }
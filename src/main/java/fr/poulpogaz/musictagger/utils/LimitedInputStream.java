@@ -53,6 +53,17 @@ public class LimitedInputStream extends InputStream {
         return read;
     }
 
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || remaining <= 0) {
+            return 0;
+        }
+
+        long skipped = is.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
     @Override
     public byte[] readNBytes(int len) throws IOException {
         if (len < 0) {
@@ -32,7 +32,7 @@ public class LoadedImage implements LazyImage {
     }
 
     @Override
-    public LazyImage transformAsync(Function<BufferedImage, BufferedImage> transform) {
+    public LazyImage transformAsync(String name, Function<BufferedImage, BufferedImage> transform) {
         return new LoadedImage(transform.apply(image));
     }
 
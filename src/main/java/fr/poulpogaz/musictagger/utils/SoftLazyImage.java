@@ -1,25 +1,20 @@
 package fr.poulpogaz.musictagger.utils;
 
-import org.apache.commons.collections4.map.ReferenceMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.Map;
 
+/**
+ * A lazy image stored in the {@link ImageCache}, under its hash: the image
+ * is loaded again if it was evicted.
+ */
 public abstract class SoftLazyImage extends AbstractLazyImage {
 
     private static final Logger LOGGER = LogManager.getLogger(SoftLazyImage.class);
 
-    private static final Map<String, BufferedImage> CACHE = Collections.synchronizedMap(new ReferenceMap<>());
-
 
 
     public static SoftLazyImage createFromFile(File file) {
@@ -41,18 +36,23 @@ public abstract class SoftLazyImage extends AbstractLazyImage {
         this.hash = hash;
     }
 
+    @Override
+    public String getIdentity() {
+        return hash;
+    }
+
     @Override
     public BufferedImage getImageNow() {
         if (hash == null) {
             return null;
         }
-        return CACHE.get(hash);
+        return ImageCache.getInstance().get(hash);
     }
 
     @Override
     protected void onImageLoad(BufferedImage img) {
         if (hash != null) {
-            CACHE.put(hash, img);
+            ImageCache.getInstance().put(hash, img);
         } else {
             LOGGER.warn("hash is null, cannot cache image");
         }
@@ -73,23 +73,27 @@ public abstract class SoftLazyImage extends AbstractLazyImage {
             this.file = file;
 
             if (image != null) {
-                CACHE.putIfAbsent(hash, image);
+                ImageCache.getInstance().putIfAbsent(hash, image);
             }
         }
 
+        // the size and the last modification date are hashed too: thumbnails
+        // of the file are stored on disk and must not outlive its content
         private static String fileHash(File file) {
-            byte[] bytes = file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
-            byte[] hash = Utils.SHA_256.digest(bytes);
+            String id = file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+            byte[] hash = Utils.sha256Digest().digest(id.getBytes(StandardCharsets.UTF_8));
             return Utils.bytesToHex(hash);
         }
 
         @Override
         public BufferedImage loadImage() throws Exception {
-            LOGGER.debug("Loading cover art from {}", file);
+            return loadImage(0);
+        }
 
-            try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
-                return ImageIO.read(file);
-            }
+        @Override
+        protected BufferedImage loadImage(int size) throws Exception {
+            LOGGER.debug("Loading cover art from {}", file);
+            return ImageUtils.read(file, size);
         }
     }
 }
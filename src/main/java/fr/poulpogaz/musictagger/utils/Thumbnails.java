@@ -0,0 +1,222 @@
+package fr.poulpogaz.musictagger.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Creates thumbnails of images. Thumbnails have fixed sizes and are created on a
+ * background pool by halving the image with bilinear interpolation, see
+ * {@link ImageUtils#downscale(BufferedImage, int)}. The image is decoded subsampled,
+ * see {@link LazyImage#getPreview(int)}.
+ * <p>
+ * Thumbnails of images with an {@linkplain LazyImage#getIdentity() identity} are
+ * stored in the {@link ImageCache} and in a disk cache, so the original image is
+ * decoded only once. The least recently used thumbnails are deleted from the disk
+ * on {@link #shutdown()} when the disk cache exceeds {@link #MAX_DISK_SIZE} bytes.
+ */
+public final class Thumbnails {
+
+    private static final Logger LOGGER = LogManager.getLogger(Thumbnails.class);
+
+    /**
+     * Sizes of the thumbnails: a thumbnail fits in a square of one of these sizes
+     */
+    private static final int[] SIZES = {32, 64, 128, 256, 384};
+
+    private static final ImageLoader LOADER = new ImageLoader("thumbnail", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static final Path DIRECTORY = Directories.getConfigurationDirectory().resolve("thumbnails");
+
+    private static final long MAX_DISK_SIZE = 128 * 1024 * 1024;
+
+    public static void shutdown() {
+        LOADER.shutdown();
+        cleanDiskCache();
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the disk cache is smaller than
+     * {@link #MAX_DISK_SIZE}. A thumbnail is touched when read from the disk, so its
+     * last modified time is the last time it was used.
+     */
+    private static void cleanDiskCache() {
+        if (!Files.isDirectory(DIRECTORY)) {
+            return;
+        }
+
+        record Entry(Path file, long size, long lastUse) {}
+
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(DIRECTORY, "*.png")) {
+            for (Path file : stream) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                entries.add(new Entry(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Failed to list thumbnails", e);
+            return;
+        }
+
+        entries.sort(Comparator.comparingLong(Entry::lastUse).reversed());
+
+        long size = 0;
+        int deleted = 0;
+        for (Entry entry : entries) {
+            size += entry.size();
+
+            if (size > MAX_DISK_SIZE) {
+                try {
+                    Files.deleteIfExists(entry.file());
+                    deleted++;
+                } catch (IOException e) {
+                    LOGGER.debug("Failed to delete thumbnail {}", entry.file(), e);
+                }
+            }
+        }
+
+        if (deleted > 0) {
+            LOGGER.info("Deleted {} thumbnails from the disk cache", deleted);
+        }
+    }
+
+    /**
+     * @return a thumbnail of the image fitting in a square of the smallest
+     * thumbnail size greater or equal to size, or of the largest thumbnail size
+     */
+    public static LazyImage get(LazyImage image, int size) {
+        Objects.requireNonNull(image);
+        int s = thumbnailSize(size);
+
+        String identity = image.getIdentity();
+        if (identity == null) {
+            // can't be cached
+            return new Thumbnail(null, image, s);
+        } else {
+            return new Thumbnail(identity + "-" + s, image, s);
+        }
+    }
+
+    private static int thumbnailSize(int size) {
+        for (int s : SIZES) {
+            if (s >= size) {
+                return s;
+            }
+        }
+
+        return SIZES[SIZES.length - 1];
+    }
+
+    private static BufferedImage readFromDisk(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        BufferedImage thumbnail;
+        try {
+            thumbnail = ImageIO.read(file.toFile());
+        } catch (IOException e) {
+            LOGGER.debug("Failed to read thumbnail {}", file, e);
+            return null;
+        }
+
+        // the last modified time is the last use, see cleanDiskCache
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOGGER.debug("Failed to touch thumbnail {}", file, e);
+        }
+
+        return thumbnail;
+    }
+
+    private static void writeToDisk(Path file, BufferedImage thumbnail) {
+        try {
+            Files.createDirectories(DIRECTORY);
+
+            // written to a temporary file first, so another thread never reads a partial thumbnail
+            Path tmp = Files.createTempFile(DIRECTORY, ".thumbnail", ".png");
+            try {
+                ImageIO.write(thumbnail, "png", tmp.toFile());
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Failed to write thumbnail {}", file, e);
+        }
+    }
+
+    private static class Thumbnail extends SoftLazyImage {
+
+        private final LazyImage source;
+        private final int size;
+
+        // used instead of the image cache when the thumbnail has no hash
+        private volatile BufferedImage image;
+
+        public Thumbnail(String hash, LazyImage source, int size) {
+            super(hash);
+            this.source = source;
+            this.size = size;
+        }
+
+        @Override
+        public BufferedImage getImageNow() {
+            return hash == null ? image : super.getImageNow();
+        }
+
+        @Override
+        protected BufferedImage loadImage() throws Exception {
+            Path file = hash == null ? null : DIRECTORY.resolve(hash + ".png");
+            if (file != null) {
+                BufferedImage thumbnail = readFromDisk(file);
+                if (thumbnail != null) {
+                    return thumbnail;
+                }
+            }
+
+            // the full image is decoded only if it is already loaded
+            BufferedImage img = source.getPreview(size);
+
+            LOGGER.debug("Creating thumbnail {} of size {}", hash, size);
+            BufferedImage thumbnail = ImageUtils.downscale(img, size);
+            if (file != null) {
+                writeToDisk(file, thumbnail);
+            }
+
+            return thumbnail;
+        }
+
+        @Override
+        protected void onImageLoad(BufferedImage img) {
+            if (hash == null) {
+                image = img;
+            } else {
+                super.onImageLoad(img);
+            }
+        }
+
+        @Override
+        protected ImageLoader getLoader() {
+            return LOADER;
+        }
+    }
+
+    private Thumbnails() {
+
+    }
+}
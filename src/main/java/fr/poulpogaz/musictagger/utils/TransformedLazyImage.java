@@ -0,0 +1,89 @@
+package fr.poulpogaz.musictagger.utils;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * An image computed from another one, on the {@link ImageLoader}. Like any
+ * {@link AbstractLazyImage}, concurrent requests share one computation.
+ * <p>
+ * If the transform is named and the origin has an identity, the result is
+ * stored in the {@link ImageCache} under the identity of the origin and the name
+ * of the transform, and transforms of the same image with the same name are
+ * the same object: they share the result and, while it is computed, the computation.
+ */
+class TransformedLazyImage extends SoftLazyImage {
+
+    // shared transforms, by key
+    private static final ConcurrentHashMap<String, WeakReference<TransformedLazyImage>> SHARED = new ConcurrentHashMap<>();
+
+    /**
+     * @param name identifies the transform: transforms with the same name must compute the
+     *             same image from the same image. Null if the transform can't be shared
+     */
+    static TransformedLazyImage of(LazyImage origin, String name, Function<BufferedImage, BufferedImage> transform) {
+        String identity = origin.getIdentity();
+        if (identity == null || name == null) {
+            return new TransformedLazyImage(null, origin, transform);
+        }
+
+        String key = identity + '#' + name;
+        while (true) {
+            WeakReference<TransformedLazyImage> ref = SHARED.get(key);
+            TransformedLazyImage image = ref == null ? null : ref.get();
+            if (image != null) {
+                return image;
+            }
+
+            TransformedLazyImage created = new TransformedLazyImage(key, origin, transform);
+            WeakReference<TransformedLazyImage> createdRef = new WeakReference<>(created);
+            boolean added = ref == null ? SHARED.putIfAbsent(key, createdRef) == null : SHARED.replace(key, ref, createdRef);
+            if (added) {
+                return created;
+            }
+        }
+    }
+
+
+
+    private final LazyImage origin;
+    private final Function<BufferedImage, BufferedImage> transform;
+
+    // used instead of the image cache when the transform isn't shared
+    private volatile BufferedImage image;
+
+    private TransformedLazyImage(String key, LazyImage origin, Function<BufferedImage, BufferedImage> transform) {
+        super(key);
+        this.origin = Objects.requireNonNull(origin);
+        this.transform = Objects.requireNonNull(transform);
+    }
+
+    @Override
+    public BufferedImage getImageNow() {
+        return hash == null ? image : super.getImageNow();
+    }
+
+    @Override
+    protected BufferedImage loadImage() throws Exception {
+        // decoded in this thread: waiting for the loader of the origin could deadlock
+        return transform.apply(origin.getPreview(0));
+    }
+
+    @Override
+    protected void onImageLoad(BufferedImage img) {
+        if (hash == null) {
+            image = img;
+        } else {
+            super.onImageLoad(img);
+        }
+    }
+
+    @Override
+    public Exception getException() {
+        Exception e = super.getException();
+        return e != null ? e : origin.getException();
+    }
+}
@@ -1,6 +1,5 @@
 package fr.poulpogaz.musictagger.utils;
 
-import javax.swing.*;
 import java.io.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -12,19 +11,8 @@ public class Utils {
     private static final DecimalFormat format = new DecimalFormat("#.##");
     private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
 
-    private static final Executor EVENT_QUEUE_EXECUTOR = SwingUtilities::invokeLater; // maybe use accumalativerunnable as demonstrated in SwingWorker
 
 
-    public static final MessageDigest SHA_256;
-
-    static {
-        try {
-            SHA_256 = MessageDigest.getInstance("SHA3-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     public static String escapeCharacter(String str, char quote, char escape) {
         return addQuote(str, quote, escape, false);
     }
@@ -84,6 +72,7 @@ public class Utils {
     }
 
     public static String sha256(InputStream is, long limit) throws IOException {
+        MessageDigest sha256 = sha256Digest();
         int c = (int) Math.min(limit, 8192);
         byte[] buff = new byte[c];
 
@@ -96,12 +85,12 @@ public class Utils {
                 break;
             }
 
-            SHA_256.update(buff, 0, r);
+            sha256.update(buff, 0, r);
 
             remaining -= r;
         }
 
-        return bytesToHex(SHA_256.digest());
+        return bytesToHex(sha256.digest());
     }
 
     public static String sha256(File file) throws IOException {
@@ -110,18 +99,33 @@ public class Utils {
         }
     }
 
+    /**
+     * @return a new SHA3-256 digest: MessageDigest isn't thread safe
+     */
+    public static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA3-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static String bytesToHex(byte[] bytes) {
         char[] chars = new char[bytes.length * 2];
 
         for (int i = 0; i < bytes.length; i++) {
-            chars[2 * i] = HEX_CHARS[(bytes[i] & 0xF) >>> 4];
+            chars[2 * i] = HEX_CHARS[(bytes[i] & 0xF0) >>> 4];
             chars[2 * i + 1] = HEX_CHARS[bytes[i] & 0xF];
         }
 
         return new String(chars);
     }
 
+    /**
+     * @return an executor running tasks on the event dispatch thread
+     * @see EDTExecutor
+     */
     public static Executor eventQueueExecutor() {
-        return EVENT_QUEUE_EXECUTOR;
+        return EDTExecutor.getInstance();
     }
 }
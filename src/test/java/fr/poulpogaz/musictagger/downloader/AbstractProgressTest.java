@@ -0,0 +1,180 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Random;
+
+public class AbstractProgressTest {
+
+    private static List<String> readOutput() throws IOException {
+        InputStream is = AbstractProgressTest.class.getResourceAsStream("yt-dlp-output.txt");
+        Assertions.assertNotNull(is, "yt-dlp-output.txt not found");
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
+            return br.lines().toList();
+        }
+    }
+
+    private static AbstractProgress.Snapshot parse(String line) {
+        AbstractProgress progress = new SimpleDownloadTask.TaskProgress();
+        Assertions.assertTrue(progress.parse(line), line);
+        return progress.getSnapshot();
+    }
+
+    @Test
+    void downloadLine() {
+        AbstractProgress.Snapshot s = parse("d downloading 0.44423766495742123 82 69152.17331458018 30720 5716506");
+
+        Assertions.assertEquals("downloading", s.status());
+        Assertions.assertNull(s.postprocessor());
+        Assertions.assertEquals(0, s.timeElapsed()); // truncated to seconds
+        Assertions.assertEquals(69152.17331458018, s.speed());
+        Assertions.assertEquals(82, s.eta());
+        Assertions.assertEquals(30720, s.downloadedBytes());
+        Assertions.assertEquals(5716506, s.totalBytes());
+        Assertions.assertFalse(s.canceled());
+    }
+
+    @Test
+    void naFields() {
+        AbstractProgress.Snapshot s = parse("d downloading 0.0 NA NA 0 NA");
+
+        Assertions.assertEquals(0, s.timeElapsed());
+        Assertions.assertEquals(-1, s.speed());
+        Assertions.assertEquals(-1, s.eta());
+        Assertions.assertEquals(0, s.downloadedBytes());
+        Assertions.assertEquals(-1, s.totalBytes());
+    }
+
+    @Test
+    void postprocessingLine() {
+        AbstractProgress.Snapshot s = parse("p started ExtractAudio");
+
+        Assertions.assertEquals("started", s.status());
+        Assertions.assertEquals("ExtractAudio", s.postprocessor());
+        Assertions.assertEquals(-1, s.timeElapsed());
+        Assertions.assertEquals(-1, s.speed());
+        Assertions.assertEquals(-1, s.eta());
+        Assertions.assertEquals(-1, s.downloadedBytes());
+        Assertions.assertEquals(-1, s.totalBytes());
+    }
+
+    @Test
+    void malformedLines() {
+        String[] lines = {
+                "",
+                "d",
+                "d ",
+                "p started",
+                "p started ExtractAudio extra",
+                "p  ExtractAudio",
+                "d downloading 0.5 82 100.0 30720",             // truncated
+                "d downloading 0.5 82 100.0 30720 ",            // trailing space
+                "d downloading 0.5 82 100.0 30720 5716506 1",   // too many fields
+                "d downloading  82 100.0 30720 5716506",        // empty field
+                "d downloading NA 82 100.0 30720 5716506",      // elapsed is required
+                "d downloading 0.5 82 100.0 NA 5716506",        // downloaded bytes are required
+                "d downloading 0.5 8x2 100.0 30720 5716506",
+                "d downloading 0.5 82 1.0.0 30720 5716506",
+                "d downloading 0.5 -82 100.0 30720 5716506",
+                "d downloading 0.5 82 100.0 99999999999999999999 5716506",
+                "x downloading 0.5 82 100.0 30720 5716506",
+                "[download] Destination: dQw4w9WgXcQ.webm",
+        };
+
+        for (String line : lines) {
+            AbstractProgress progress = new SimpleDownloadTask.TaskProgress();
+            Assertions.assertFalse(progress.parse(line), line);
+            Assertions.assertSame(AbstractProgress.Snapshot.EMPTY, progress.getSnapshot(), line);
+        }
+    }
+
+    @Test
+    void output() throws IOException {
+        AbstractProgress progress = new SimpleDownloadTask.TaskProgress();
+
+        int parsed = 0;
+        for (String line : readOutput()) {
+            boolean progressLine = line.startsWith("d ") || line.startsWith("p ");
+            Assertions.assertEquals(progressLine, progress.parse(line), line);
+
+            if (progressLine) {
+                parsed++;
+                AbstractProgress.Snapshot s = progress.getSnapshot();
+                String[] fields = line.split(" ");
+
+                Assertions.assertEquals(fields[1], s.status(), line);
+                if (fields[0].equals("d")) {
+                    Assertions.assertNull(s.postprocessor(), line);
+                    Assertions.assertEquals(((long) Double.parseDouble(fields[2])) * 1000, s.timeElapsed(), line);
+                    Assertions.assertEquals(fields[3].equals("NA") ? -1 : Long.parseLong(fields[3]), s.eta(), line);
+                    Assertions.assertEquals(fields[4].equals("NA") ? -1 : Double.parseDouble(fields[4]), s.speed(), line);
+                    Assertions.assertEquals(Long.parseLong(fields[5]), s.downloadedBytes(), line);
+                    Assertions.assertEquals(fields[6].equals("NA") ? -1 : Long.parseLong(fields[6]), s.totalBytes(), line);
+                } else {
+                    Assertions.assertEquals(fields[2], s.postprocessor(), line);
+                }
+            }
+        }
+
+        Assertions.assertTrue(parsed > 0);
+    }
+
+    @Test
+    void cancellationIsKept() {
+        AbstractProgress progress = new SimpleDownloadTask.TaskProgress();
+        progress.setCanceled();
+
+        Assertions.assertTrue(progress.parse("p started ExtractAudio"));
+        Assertions.assertTrue(progress.isCanceled());
+    }
+
+    @Test
+    void parseDoubleSameAsJDK() throws IOException {
+        for (String line : readOutput()) {
+            if (line.startsWith("d ")) {
+                for (String field : line.split(" ")) {
+                    if (!field.equals("NA") && !field.isEmpty() && Character.isDigit(field.charAt(0))) {
+                        assertSameAsJDK(field);
+                    }
+                }
+            }
+        }
+
+        String[] numbers = {
+                "0", "0.0", "1.", "0.5", "0.1", "123456789", "9007199254740993", "90071992547409930.5",
+                "0.46396954330341805", "4846638.00693807", "1.7976931348623157e+308", "1e-05",
+                "123456789012345678901234567890", "0.000000000000000000001"
+        };
+        for (String number : numbers) {
+            assertSameAsJDK(number);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            double d = random.nextDouble() * Math.pow(10, random.nextInt(12));
+            assertSameAsJDK(Double.toString(d));
+            assertSameAsJDK(String.valueOf(random.nextLong(Long.MAX_VALUE)));
+        }
+    }
+
+    private static void assertSameAsJDK(String number) {
+        Assertions.assertEquals(Double.parseDouble(number), AbstractProgress.parseDouble(number, 0, number.length()), number);
+    }
+
+    @Test
+    void parseLong() {
+        Assertions.assertEquals(0, AbstractProgress.parseLong("0", 0, 1));
+        Assertions.assertEquals(-1, AbstractProgress.parseLong("NA", 0, 2));
+        Assertions.assertEquals(Long.MAX_VALUE, AbstractProgress.parseLong("9223372036854775807", 0, 19));
+        Assertions.assertEquals(5716506, AbstractProgress.parseLong("d 5716506 x", 2, 9));
+        Assertions.assertThrows(NumberFormatException.class, () -> AbstractProgress.parseLong("9223372036854775808", 0, 19));
+        Assertions.assertThrows(NumberFormatException.class, () -> AbstractProgress.parseLong("12a", 0, 3));
+    }
+}
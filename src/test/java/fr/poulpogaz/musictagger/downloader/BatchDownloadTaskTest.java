@@ -0,0 +1,92 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class BatchDownloadTaskTest {
+
+    private static final BatchDownloadTask.Item A = item("https://www.youtube.com/watch?v=a", "a");
+    private static final BatchDownloadTask.Item B = item("https://www.youtube.com/watch?v=b", "b");
+
+    private static BatchDownloadTask.Item item(String url, String output) {
+        return new BatchDownloadTask.Item(null, url, output, Map.of());
+    }
+
+    private static YTDLPProcess.Event output(String line) {
+        return new YTDLPProcess.Event(YTDLPProcess.Event.Type.OUTPUT, line);
+    }
+
+    @Test
+    void demultiplexFiles() throws Exception {
+        RecordingTask task = new RecordingTask(A, B);
+
+        task.onEvent(output("[batch] start " + B.url()));
+        task.onEvent(output("[download] Destination: /tmp/.batch-0/b.webm"));
+        task.onEvent(output("[batch] file " + B.url() + " /tmp/.batch-0/b.opus"));
+        task.onEvent(output("[batch] start " + A.url()));
+        task.onEvent(output("[batch] file " + A.url() + " /tmp/.batch-0/a file.opus"));
+
+        Assertions.assertEquals(List.of(B, A), task.items);
+        Assertions.assertEquals(List.of(Path.of("/tmp/.batch-0/b.opus"), Path.of("/tmp/.batch-0/a file.opus")), task.files);
+    }
+
+    @Test
+    void ignoreUnknownLines() throws Exception {
+        RecordingTask task = new RecordingTask(A);
+
+        task.onEvent(output("[batch] file https://www.youtube.com/watch?v=c /tmp/.batch-0/c.opus"));
+        task.onEvent(output("[batch] file " + A.url()));
+        task.onEvent(new YTDLPProcess.Event(YTDLPProcess.Event.Type.ERROR, "[batch] file " + A.url() + " a.opus"));
+
+        Assertions.assertTrue(task.items.isEmpty());
+    }
+
+    @Test
+    void keepExistingTarget() throws Exception {
+        Path dir = Files.createTempDirectory("batch");
+        try {
+            Path target = dir.resolve("a.opus");
+            Files.writeString(target, "existing");
+            Path file = Files.writeString(dir.resolve("id.opus"), "downloaded");
+            Path thumbnail = Files.writeString(dir.resolve("id.png"), "thumbnail");
+
+            BatchDownloadTask.Item a = item(A.url(), target.toString());
+            BatchDownloadTask task = new BatchDownloadTask(List.of(a));
+            task.onEvent(output("[batch] file " + a.url() + " " + file));
+
+            Assertions.assertEquals("existing", Files.readString(target));
+            Assertions.assertFalse(Files.exists(file));
+            Assertions.assertFalse(Files.exists(thumbnail));
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path f : files.toList()) {
+                    Files.delete(f);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static class RecordingTask extends BatchDownloadTask {
+
+        private final List<Item> items = new ArrayList<>();
+        private final List<Path> files = new ArrayList<>();
+
+        RecordingTask(Item... items) {
+            super(List.of(items));
+        }
+
+        @Override
+        void onDownloaded(Item item, Path file) {
+            items.add(item);
+            files.add(file);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class DownloadExceptionTest {
+
+    private static final String NETWORK_ERROR = "ERROR: [youtube] dQw4w9WgXcQ: Unable to download webpage: HTTP Error 503: Service Unavailable";
+    private static final String TIMEOUT_ERROR = "ERROR: unable to download video data: <urlopen error timed out>";
+    private static final String PRIVATE_VIDEO_ERROR = "ERROR: [youtube] dQw4w9WgXcQ: Private video. Sign in if you've been granted access to this video";
+
+    @Test
+    void networkErrors() {
+        Assertions.assertTrue(DownloadException.fromYTDLPErrors(NETWORK_ERROR).isRetryable());
+        Assertions.assertTrue(DownloadException.fromYTDLPErrors(NETWORK_ERROR + "\n" + TIMEOUT_ERROR).isRetryable());
+        Assertions.assertTrue(DownloadException.fromYTDLPErrors("WARNING: [youtube] Retrying (1/3)...\r\n" + TIMEOUT_ERROR + "\r\n").isRetryable());
+    }
+
+    @Test
+    void otherErrors() {
+        Assertions.assertFalse(DownloadException.fromYTDLPErrors(PRIVATE_VIDEO_ERROR).isRetryable());
+        Assertions.assertFalse(DownloadException.fromYTDLPErrors("ERROR: Unsupported URL: https://example.com").isRetryable());
+    }
+
+    @Test
+    void mixedErrors() {
+        // a single error that isn't caused by the network is enough
+        Assertions.assertFalse(DownloadException.fromYTDLPErrors(NETWORK_ERROR + "\n" + PRIVATE_VIDEO_ERROR).isRetryable());
+        Assertions.assertFalse(DownloadException.fromYTDLPErrors(PRIVATE_VIDEO_ERROR + "\n" + NETWORK_ERROR).isRetryable());
+        Assertions.assertFalse(DownloadException.fromYTDLPErrors(NETWORK_ERROR + "\n" + PRIVATE_VIDEO_ERROR + "\n" + TIMEOUT_ERROR).isRetryable());
+    }
+
+    @Test
+    void noError() {
+        Assertions.assertFalse(DownloadException.fromYTDLPErrors("").isRetryable());
+        Assertions.assertFalse(DownloadException.fromYTDLPErrors("WARNING: HTTP Error 503: Service Unavailable").isRetryable());
+    }
+
+    @Test
+    void messageIsKept() {
+        String errors = NETWORK_ERROR + "\n" + PRIVATE_VIDEO_ERROR;
+        Assertions.assertEquals(errors, DownloadException.fromYTDLPErrors(errors).getMessage());
+    }
+}
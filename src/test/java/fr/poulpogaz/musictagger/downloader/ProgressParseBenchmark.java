@@ -0,0 +1,163 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the output of yt-dlp, in the format requested by {@link AbstractProgress#addOptions(YTDLP)},
+ * while another thread reads the progress, as the EDT does. Compares {@link AbstractProgress}
+ * with the regex based parser it replaced.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProgressParseBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ProgressParseBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    private List<String> lines;
+    private AbstractProgress progress;
+    private RegexProgress regexProgress;
+
+    @Setup
+    public void setup() throws IOException {
+        InputStream is = ProgressParseBenchmark.class.getResourceAsStream("yt-dlp-output.txt");
+        if (is == null) {
+            throw new IOException("yt-dlp-output.txt not found");
+        }
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
+            lines = br.lines().toList();
+        }
+
+        progress = new SimpleDownloadTask.TaskProgress();
+        regexProgress = new RegexProgress();
+    }
+
+    @Benchmark
+    @Group("scanner")
+    public void scannerParse(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(progress.parse(line));
+        }
+    }
+
+    @Benchmark
+    @Group("scanner")
+    public void scannerRead(Blackhole bh) {
+        AbstractProgress.Snapshot s = progress.getSnapshot();
+        bh.consume(s.downloadedBytes());
+        bh.consume(s.totalBytes());
+        bh.consume(s.speed());
+        bh.consume(s.eta());
+    }
+
+    @Benchmark
+    @Group("regex")
+    public void regexParse(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(regexProgress.parse(line));
+        }
+    }
+
+    @Benchmark
+    @Group("regex")
+    public void regexRead(Blackhole bh) {
+        bh.consume(regexProgress.getDownloadedBytes());
+        bh.consume(regexProgress.getTotalBytes());
+        bh.consume(regexProgress.getSpeed());
+        bh.consume(regexProgress.getETA());
+    }
+
+
+    /**
+     * The previous implementation of {@link AbstractProgress}
+     */
+    private static class RegexProgress {
+
+        private static final Pattern D_PATTERN =
+                Pattern.compile("^d ([^ ]+) ([^ ]+) ([^ ]+) ([^ ]+) ([^ ]+) ([^ ]+)$");
+
+        private static final Pattern P_PATTERN =
+                Pattern.compile("^p ([^ ]+) ([^ ]+)$");
+
+        private String status;
+        private String postprocessor;
+        private long timeElapsed;
+        private double speed;
+        private long eta;
+        private long downloadedBytes;
+        private long totalBytes;
+
+        public synchronized boolean parse(String line) {
+            try {
+                if (line.startsWith("d ")) {
+                    Matcher m = D_PATTERN.matcher(line);
+                    if (m.matches()) {
+                        status = m.group(1);
+                        postprocessor = null;
+                        timeElapsed = ((long) Float.parseFloat(m.group(2))) * 1000;
+                        eta = m.group(3).equals("NA") ? -1 : Long.parseLong(m.group(3));
+                        speed = m.group(4).equals("NA") ? -1 : Double.parseDouble(m.group(4));
+                        downloadedBytes = Long.parseLong(m.group(5));
+                        totalBytes = m.group(6).equals("NA") ? -1 : Long.parseLong(m.group(6));
+                        return true;
+                    }
+                } else if (line.startsWith("p ")) {
+                    Matcher m = P_PATTERN.matcher(line);
+                    if (m.matches()) {
+                        status = m.group(1);
+                        postprocessor = m.group(2);
+                        timeElapsed = -1;
+                        eta = -1;
+                        speed = -1;
+                        downloadedBytes = -1;
+                        totalBytes = -1;
+                        return true;
+                    }
+                }
+            } catch (NumberFormatException _) {}
+
+            return false;
+        }
+
+        public synchronized double getSpeed() {
+            return speed;
+        }
+
+        public synchronized long getETA() {
+            return eta;
+        }
+
+        public synchronized long getDownloadedBytes() {
+            return downloadedBytes;
+        }
+
+        public synchronized long getTotalBytes() {
+            return totalBytes;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fr.poulpogaz.musictagger.downloader;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    void exponentialDelay() {
+        RetryPolicy policy = new RetryPolicy(10, 1_000, 2, 60_000, 0);
+
+        Assertions.assertEquals(1_000, policy.getDelay(1));
+        Assertions.assertEquals(2_000, policy.getDelay(2));
+        Assertions.assertEquals(4_000, policy.getDelay(3));
+        Assertions.assertEquals(32_000, policy.getDelay(6));
+    }
+
+    @Test
+    void delayIsCapped() {
+        RetryPolicy policy = new RetryPolicy(10, 1_000, 2, 60_000, 0);
+
+        Assertions.assertEquals(60_000, policy.getDelay(7));
+        Assertions.assertEquals(60_000, policy.getDelay(100));
+        Assertions.assertEquals(60_000, policy.getDelay(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void jitterBounds() {
+        RetryPolicy policy = new RetryPolicy(10, 1_000, 2, 60_000, 0.25);
+
+        for (int retry = 1; retry <= 10; retry++) {
+            long delay = Math.min(60_000, 1_000L << (retry - 1));
+
+            for (int i = 0; i < 1_000; i++) {
+                long d = policy.getDelay(retry);
+                Assertions.assertTrue(d >= delay * 0.75 && d <= delay * 1.25, "retry " + retry + ": " + d);
+            }
+        }
+    }
+
+    @Test
+    void canRetry() {
+        Assertions.assertFalse(RetryPolicy.NONE.canRetry(1));
+        Assertions.assertTrue(RetryPolicy.DEFAULT.canRetry(3));
+        Assertions.assertFalse(RetryPolicy.DEFAULT.canRetry(4));
+    }
+
+    @Test
+    void invalidPolicies() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(0, 1_000, 2, 60_000, 0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(1, -1, 2, 60_000, 0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(1, 1_000, 0.5, 60_000, 0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(1, 1_000, 2, 60_000, 1.5));
+    }
+}
@@ -0,0 +1,55 @@
+package fr.poulpogaz.musictagger.opus;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the byte at a time CRC with the slicing-by-8 CRC on Ogg page sized buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CRC32Benchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(CRC32Benchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    // a small page, a typical page and the largest page
+    @Param({"282", "4096", "65307"})
+    private int size;
+
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public int bytewise() {
+        return CRC32.updateBytewise(0, buffer, 0, size);
+    }
+
+    @Benchmark
+    public int slicingBy8() {
+        return CRC32.update(0, buffer, 0, size);
+    }
+}
@@ -0,0 +1,52 @@
+package fr.poulpogaz.musictagger.opus;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+public class CRC32Test {
+
+    @Test
+    void sameAsBytewise() {
+        Random random = new Random(42);
+        byte[] bytes = new byte[OggPage.MAX_SIZE];
+        random.nextBytes(bytes);
+
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(order);
+
+            for (int i = 0; i < 1000; i++) {
+                int index = random.nextInt(bytes.length);
+                int length = random.nextInt(bytes.length - index + 1);
+                int crc = random.nextInt();
+
+                Assertions.assertEquals(CRC32.updateBytewise(crc, buffer, index, length),
+                                        CRC32.update(crc, buffer, index, length));
+            }
+        }
+    }
+
+    @Test
+    void smallLengths() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17});
+
+        for (int length = 0; length <= buffer.capacity(); length++) {
+            Assertions.assertEquals(CRC32.updateBytewise(0, buffer, 0, length),
+                                    CRC32.getCRC(buffer, 0, length));
+        }
+    }
+
+    @Test
+    void oggPageCRC() {
+        // "OggS" followed by zeros
+        ByteBuffer buffer = ByteBuffer.allocate(OggPage.MIN_HEADER_SIZE);
+        buffer.put(OggPage.MAGIC_HEADER_BYTES);
+
+        Assertions.assertEquals(CRC32.updateBytewise(0, buffer, 0, buffer.capacity()),
+                                CRC32.getCRC(buffer.flip()));
+        Assertions.assertFalse(buffer.hasRemaining());
+    }
+}
@@ -0,0 +1,135 @@
+package fr.poulpogaz.musictagger.opus;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link SaveStrategy#IN_PLACE} and {@link SaveStrategy#TEMP_FILE} on
+ * synthetic opus files of different sizes. The comments written don't fit in the
+ * original comment pages, so audio pages have to be moved and renumbered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SaveStrategyBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(SaveStrategyBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    // in MiB
+    @Param({"1", "10", "100"})
+    private int fileSize;
+
+    @Param({"IN_PLACE", "TEMP_FILE"})
+    private SaveStrategy strategy;
+
+    private Path original;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        original = Files.createTempFile("benchmark", ".opus");
+        file = original.resolveSibling("copy-" + original.getFileName());
+        writeOpusFile(original, (long) fileSize << 20);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyFile() throws IOException {
+        Files.copy(original, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        Files.deleteIfExists(original);
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        OpusMetadataWriter omw = new OpusMetadataWriter(file);
+        omw.setVendor("benchmark");
+        omw.addComment("TITLE", "title");
+        omw.addComment("LYRICS", "a".repeat(64 * 1024));
+        omw.write(strategy);
+    }
+
+
+    private static void writeOpusFile(Path path, long size) throws IOException {
+        Random random = new Random(42);
+        ByteBuffer page = ByteBuffer.allocate(OggPage.MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int seq = 0;
+
+            // OpusHead: version, channel count, pre-skip, rate, output gain, mapping family
+            ByteBuffer head = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN);
+            head.put(OpusHead.MAGIC_HEADER_BYTES).put((byte) 1).put((byte) 2)
+                .putShort((short) 312).putInt(48000).putShort((short) 0).put((byte) 0);
+            writePage(fc, page, 2, 0, seq++, head.array());
+
+            // OpusTags: vendor and no comments
+            byte[] vendor = "benchmark".getBytes(StandardCharsets.UTF_8);
+            ByteBuffer tags = ByteBuffer.allocate(8 + 4 + vendor.length + 4).order(ByteOrder.LITTLE_ENDIAN);
+            tags.put(OpusInputStream.OPUS_TAGS).putInt(vendor.length).put(vendor).putInt(0);
+            writePage(fc, page, 0, 0, seq++, tags.array());
+
+            // audio
+            byte[] data = new byte[4000];
+            long granule = 0;
+            while (fc.position() < size) {
+                random.nextBytes(data);
+                granule += 48000;
+                writePage(fc, page, fc.position() + 2 * data.length >= size ? 4 : 0, granule, seq++, data);
+            }
+        }
+    }
+
+    private static void writePage(FileChannel fc, ByteBuffer page, int headerType, long granule, int seq, byte[] data)
+            throws IOException {
+        int segments = data.length / 255 + 1;
+
+        page.clear();
+        page.put(OggPage.MAGIC_HEADER_BYTES)
+            .put((byte) 0)
+            .put((byte) headerType)
+            .putLong(granule)
+            .putInt(1) // bitstream serial number
+            .putInt(seq)
+            .putInt(0) // CRC
+            .put((byte) segments);
+        for (int i = 0; i < segments - 1; i++) {
+            page.put((byte) 255);
+        }
+        page.put((byte) (data.length % 255));
+        page.put(data);
+        page.putInt(22, CRC32.getCRC(page, 0, page.position()));
+
+        page.flip();
+        while (page.hasRemaining()) {
+            fc.write(page);
+        }
+    }
+}